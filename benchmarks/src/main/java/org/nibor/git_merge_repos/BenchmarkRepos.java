@@ -0,0 +1,71 @@
+package org.nibor.git_merge_repos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Generated input repositories in a temporary directory, and optionally a
+ * repository that they have been fetched into like {@link RepoMerger} does
+ * before merging.
+ */
+class BenchmarkRepos implements AutoCloseable {
+
+	private final File directory;
+	private final List<SubtreeConfig> configs;
+	private Repository fetched;
+
+	BenchmarkRepos(RepoGenerator generator, boolean targetRoot) throws IOException {
+		directory = Files.createTempDirectory("git-merge-repos-benchmark").toFile();
+		configs = generator.generate(directory, targetRoot);
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	List<SubtreeConfig> getConfigs() {
+		return configs;
+	}
+
+	/**
+	 * @return a bare repository with the refs of all input repositories under
+	 *         <code>refs/heads/original/</code> and
+	 *         <code>refs/tags/original/</code>
+	 */
+	Repository fetch() throws IOException, GitAPIException {
+		if (fetched != null) {
+			return fetched;
+		}
+		fetched = new RepositoryBuilder().setGitDir(new File(directory, "fetched.git")).setBare()
+				.build();
+		fetched.create(true);
+		try (Git git = new Git(fetched)) {
+			for (SubtreeConfig config : configs) {
+				RefSpec branchesSpec = new RefSpec("refs/heads/*:refs/heads/original/"
+						+ config.getRemoteName() + "/*");
+				RefSpec tagsSpec = new RefSpec("refs/tags/*:refs/tags/original/"
+						+ config.getRemoteName() + "/*");
+				git.fetch().setRemote(config.getFetchUri().toString())
+						.setRefSpecs(branchesSpec, tagsSpec).call();
+			}
+		}
+		return fetched;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fetched != null) {
+			fetched.close();
+		}
+		FileUtils.delete(directory, FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+}
@@ -0,0 +1,89 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads the fetched branches and tags into a {@link RefIndex} and resolves
+ * each of them in all repositories (and the peeled IDs in each repository
+ * that has it), like {@link RepoMerger} does before merging them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RefResolutionBenchmark {
+
+	@Param({ "5", "100" })
+	public int repos;
+
+	@Param("500")
+	public int branches;
+
+	@Param("500")
+	public int tags;
+
+	private BenchmarkRepos benchmarkRepos;
+	private RepoMerger merger;
+	private RefIndex readRefIndex;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, GitAPIException {
+		benchmarkRepos = new BenchmarkRepos(new RepoGenerator(repos, branches, tags, 1, 0), false);
+		Repository repository = benchmarkRepos.fetch();
+		merger = new RepoMerger(repository.getDirectory(), benchmarkRepos.getConfigs(), true);
+		readRefIndex = merger.readRefIndex();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		merger.close();
+		benchmarkRepos.close();
+	}
+
+	@Benchmark
+	public void resolveRefs(Blackhole blackhole) throws IOException {
+		lookUp(merger.readRefIndex(), blackhole);
+	}
+
+	/**
+	 * Only the lookups, without reading the refs, which would hide their cost
+	 * with many repositories.
+	 */
+	@Benchmark
+	public void lookUpRefs(Blackhole blackhole) {
+		lookUp(readRefIndex, blackhole);
+	}
+
+	private static void lookUp(RefIndex refIndex, Blackhole blackhole) {
+		for (String prefix : new String[] { RefIndex.BRANCHES, RefIndex.TAGS }) {
+			for (String name : refIndex.getNames(prefix)) {
+				Map<SubtreeConfig, ObjectId> resolved = refIndex.resolve(prefix, name);
+				for (SubtreeConfig config : resolved.keySet()) {
+					blackhole.consume(refIndex.getPeeledId(prefix, name, config));
+				}
+			}
+		}
+	}
+}
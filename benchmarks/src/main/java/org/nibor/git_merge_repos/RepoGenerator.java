@@ -0,0 +1,222 @@
+package org.nibor.git_merge_repos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Generates bare repositories with synthetic content for benchmarking.
+ * <p>
+ * Each repository has a root commit and on top of it one commit per branch
+ * (the first branch is called <code>main</code>), which only changes one file
+ * in the top directory. Tags point to the branch commits, every other one is
+ * an annotated tag. The directories contain the configured number of files and
+ * two subdirectories each, up to the configured depth.
+ * <p>
+ * The names in the top directory are prefixed with the repository, so that the
+ * repositories can also be merged into the same directory.
+ */
+public class RepoGenerator {
+
+	private static final long BASE_TIME = 1600000000000L;
+
+	private final int repos;
+	private final int branches;
+	private final int tags;
+	private final int filesPerTree;
+	private final int depth;
+
+	public RepoGenerator(int repos, int branches, int tags, int filesPerTree, int depth) {
+		if (repos < 1 || branches < 1) {
+			throw new IllegalArgumentException("Need at least one repository and branch");
+		}
+		this.repos = repos;
+		this.branches = branches;
+		this.tags = tags;
+		this.filesPerTree = filesPerTree;
+		this.depth = depth;
+	}
+
+	/**
+	 * Generates the repositories as <code>repo-N.git</code> in the directory.
+	 *
+	 * @return the configs for merging each repository into a directory of the
+	 *         same name, or all into the root if <code>targetRoot</code>
+	 */
+	public List<SubtreeConfig> generate(File directory, boolean targetRoot) throws IOException {
+		List<SubtreeConfig> configs = new ArrayList<>();
+		for (int repo = 0; repo < repos; repo++) {
+			File gitDir = new File(directory, "repo-" + repo + ".git");
+			generateRepo(gitDir, repo);
+			String subtreeDirectory = targetRoot ? "." : "repo-" + repo;
+			configs.add(new SubtreeConfig(subtreeDirectory, new URIish(gitDir.toURI().toURL())));
+		}
+		return configs;
+	}
+
+	private void generateRepo(File gitDir, int repo) throws IOException {
+		try (Repository repository = new RepositoryBuilder().setGitDir(gitDir).setBare().build()) {
+			repository.create(true);
+			BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+			batch.setAtomic(true);
+			batch.disableRefLog();
+
+			try (ObjectInserter inserter = repository.newObjectInserter()) {
+				String prefix = "r" + repo + "-";
+				ObjectId subtree = depth > 0 ? insertTree(inserter, "", depth - 1) : null;
+				ObjectId rootCommit = insertCommit(inserter, insertTopTree(inserter, prefix, subtree,
+						"root"), null, "Initial commit of repo " + repo, 0);
+
+				List<ObjectId> branchCommits = new ArrayList<>();
+				for (int branch = 0; branch < branches; branch++) {
+					ObjectId tree = insertTopTree(inserter, prefix, subtree, "branch " + branch);
+					ObjectId commit = insertCommit(inserter, tree, rootCommit,
+							"Change on " + getBranchName(branch), repo * branches + branch + 1);
+					branchCommits.add(commit);
+					batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), commit,
+							Constants.R_HEADS + getBranchName(branch)));
+				}
+
+				for (int tag = 0; tag < tags; tag++) {
+					ObjectId target = branchCommits.get(tag % branches);
+					String tagName = "v" + tag;
+					if (tag % 2 == 0) {
+						TagBuilder tagBuilder = new TagBuilder();
+						tagBuilder.setTag(tagName);
+						tagBuilder.setMessage("Release " + tagName + "\n");
+						tagBuilder.setTagger(getIdent(tag));
+						tagBuilder.setObjectId(target, Constants.OBJ_COMMIT);
+						target = inserter.insert(tagBuilder);
+					}
+					batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), target,
+							Constants.R_TAGS + tagName));
+				}
+				inserter.flush();
+			}
+
+			try (RevWalk revWalk = new RevWalk(repository)) {
+				batch.execute(revWalk, NullProgressMonitor.INSTANCE);
+			}
+			for (ReceiveCommand command : batch.getCommands()) {
+				if (command.getResult() != ReceiveCommand.Result.OK) {
+					throw new IOException("Could not create " + command.getRefName() + " in "
+							+ gitDir + ": " + command.getResult());
+				}
+			}
+			repository.updateRef(Constants.HEAD).link(Constants.R_HEADS + getBranchName(0));
+		}
+	}
+
+	private static String getBranchName(int branch) {
+		return branch == 0 ? "main" : "branch-" + branch;
+	}
+
+	/**
+	 * The top directory, with the file that differs between the branches.
+	 */
+	private ObjectId insertTopTree(ObjectInserter inserter, String prefix, ObjectId subtree,
+			String variant) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<ObjectId> ids = new ArrayList<>();
+		for (int file = 0; file < filesPerTree; file++) {
+			names.add(prefix + getFileName(file));
+			ids.add(insertBlob(inserter, prefix + "file " + file));
+		}
+		names.add(prefix + "variant.txt");
+		ids.add(insertBlob(inserter, variant));
+		// Names sort the same as the git tree order, as "dir-" < "file-" < "variant"
+		TreeFormatter formatter = new TreeFormatter();
+		if (subtree != null) {
+			formatter.append(prefix + "dir-0", FileMode.TREE, subtree);
+			formatter.append(prefix + "dir-1", FileMode.TREE, subtree);
+		}
+		for (int i = 0; i < names.size(); i++) {
+			formatter.append(names.get(i), FileMode.REGULAR_FILE, ids.get(i));
+		}
+		return formatter.insertTo(inserter);
+	}
+
+	private ObjectId insertTree(ObjectInserter inserter, String path, int remainingDepth)
+			throws IOException {
+		TreeFormatter formatter = new TreeFormatter();
+		if (remainingDepth > 0) {
+			for (int dir = 0; dir < 2; dir++) {
+				String name = "dir-" + dir;
+				formatter.append(name, FileMode.TREE,
+						insertTree(inserter, path + name + "/", remainingDepth - 1));
+			}
+		}
+		for (int file = 0; file < filesPerTree; file++) {
+			String name = getFileName(file);
+			formatter.append(name, FileMode.REGULAR_FILE, insertBlob(inserter, path + name));
+		}
+		return formatter.insertTo(inserter);
+	}
+
+	/**
+	 * @return the file name, padded so that the names are in tree order
+	 */
+	private static String getFileName(int file) {
+		return String.format("file-%05d.txt", file);
+	}
+
+	private static ObjectId insertBlob(ObjectInserter inserter, String content)
+			throws IOException {
+		return inserter.insert(Constants.OBJ_BLOB,
+				(content + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static ObjectId insertCommit(ObjectInserter inserter, ObjectId tree, ObjectId parent,
+			String message, int seconds) throws IOException {
+		CommitBuilder commitBuilder = new CommitBuilder();
+		commitBuilder.setTreeId(tree);
+		if (parent != null) {
+			commitBuilder.setParentId(parent);
+		}
+		commitBuilder.setAuthor(getIdent(seconds));
+		commitBuilder.setCommitter(getIdent(seconds));
+		commitBuilder.setMessage(message + "\n");
+		return inserter.insert(commitBuilder);
+	}
+
+	private static PersonIdent getIdent(int seconds) {
+		return new PersonIdent("Generator", "generator@example.org",
+				BASE_TIME + seconds * 1000L, 0);
+	}
+
+	/**
+	 * Generates repositories for trying out the program on them.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 6) {
+			System.err.println("usage: RepoGenerator <directory> <repos> <branches> <tags> "
+					+ "<files_per_tree> <depth>");
+			System.exit(64);
+		}
+		File directory = new File(args[0]);
+		RepoGenerator generator = new RepoGenerator(Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+				Integer.parseInt(args[5]));
+		for (SubtreeConfig config : generator.generate(directory, false)) {
+			System.out.println(config.getFetchUri() + ":" + config.getSubtreeDirectory());
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.nibor.git_merge_repos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole {@link RepoMerger#run()}, from fetching the generated repositories
+ * to checking out the merged repository, into a new output directory each
+ * time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepoMergerBenchmark {
+
+	@Param("3")
+	public int repos;
+
+	@Param("100")
+	public int branches;
+
+	@Param("100")
+	public int tags;
+
+	@Param("20")
+	public int filesPerTree;
+
+	@Param("3")
+	public int depth;
+
+	@Param({ "1", "4" })
+	public int mergeThreads;
+
+	@Param({ "false", "true" })
+	public boolean packObjects;
+
+	@Param({ "false", "true" })
+	public boolean reftable;
+
+	private BenchmarkRepos benchmarkRepos;
+	private File outputDirectory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		benchmarkRepos = new BenchmarkRepos(
+				new RepoGenerator(repos, branches, tags, filesPerTree, depth), false);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpOutput() {
+		outputDirectory = new File(benchmarkRepos.getDirectory(), "merged-repo");
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownOutput() throws IOException {
+		FileUtils.delete(outputDirectory, FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		benchmarkRepos.close();
+	}
+
+	@Benchmark
+	public int run() throws IOException, GitAPIException {
+		try (RepoMerger merger = new RepoMerger(outputDirectory, benchmarkRepos.getConfigs())) {
+			merger.setMergeThreads(mergeThreads);
+			merger.setPackObjects(packObjects);
+			merger.setReftable(reftable);
+			merger.run();
+			return merger.getMergedRefCount();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Creates the merge commits of all branches with
+ * {@link SubtreeMerger#createMergeCommit}. The objects are only formatted and
+ * hashed, not written, so that only the merging is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubtreeMergerBenchmark {
+
+	@Param("3")
+	public int repos;
+
+	@Param("100")
+	public int branches;
+
+	@Param("20")
+	public int filesPerTree;
+
+	@Param("3")
+	public int depth;
+
+	@Param({ "false", "true" })
+	public boolean targetRoot;
+
+	private BenchmarkRepos benchmarkRepos;
+	private Repository repository;
+	private final List<Map<SubtreeConfig, RevCommit>> parents = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, GitAPIException {
+		benchmarkRepos = new BenchmarkRepos(
+				new RepoGenerator(repos, branches, 0, filesPerTree, depth), targetRoot);
+		repository = benchmarkRepos.fetch();
+		RefIndex refIndex;
+		try (RepoMerger merger = new RepoMerger(repository.getDirectory(),
+				benchmarkRepos.getConfigs(), true)) {
+			refIndex = merger.readRefIndex();
+		}
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			for (String branch : refIndex.getNames(RefIndex.BRANCHES)) {
+				Map<SubtreeConfig, RevCommit> parentCommits = new LinkedHashMap<>();
+				for (Map.Entry<SubtreeConfig, ObjectId> entry : refIndex
+						.resolve(RefIndex.BRANCHES, branch).entrySet()) {
+					parentCommits.put(entry.getKey(), revWalk.parseCommit(entry.getValue()));
+				}
+				parents.add(parentCommits);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		benchmarkRepos.close();
+	}
+
+	@Benchmark
+	public void createMergeCommits(Blackhole blackhole) throws IOException {
+		// A new cache each time, otherwise only the first iteration would merge
+		MergeCache mergeCache = new MergeCache();
+		MergeStatistics statistics = new MergeStatistics();
+		ObjectInserter inserter = new HashingInserter();
+		SubtreeMerger merger = new SubtreeMerger(repository, inserter, mergeCache, statistics);
+		for (Map<SubtreeConfig, RevCommit> parentCommits : parents) {
+			blackhole.consume(merger.createMergeCommit(parentCommits, "Merge"));
+		}
+	}
+
+	/**
+	 * Only computes the IDs of the inserted objects.
+	 */
+	private static class HashingInserter extends ObjectInserter.Formatter {
+		@Override
+		public ObjectId insert(int objectType, byte[] data, int off, int len) {
+			return idFor(objectType, data, off, len);
+		}
+
+		@Override
+		public ObjectId insert(int objectType, long length, InputStream in) throws IOException {
+			return idFor(objectType, length, in);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -3,4 +3,4 @@
 cd $(dirname $0)
 pwd=$(pwd)
 
-./run.sh $pwd/example/repo-one:. $pwd/example/repo-two:.
+./run.sh $pwd/example/repo-one.git-fast-export:. $pwd/example/repo-two.git-fast-export:.
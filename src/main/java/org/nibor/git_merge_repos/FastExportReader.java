@@ -0,0 +1,733 @@
+package org.nibor.git_merge_repos;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.IO;
+
+/**
+ * Reads a stream as written by <code>git fast-export</code> and inserts its
+ * blobs, trees, commits and tags directly, so that no intermediate repository
+ * has to be created with <code>git fast-import</code> first. The objects are
+ * the same as the ones <code>git fast-import</code> creates, so the commit IDs
+ * are too.
+ * <p>
+ * Trees are only read and written where the commits change them: The tree of
+ * each commit is kept as a tree of entries, in which the directories that were
+ * not changed are only loaded once a path in them is changed.
+ * <p>
+ * Supports the commands and file changes that fast-export writes, but not
+ * notes or the commands that need a response (e.g. <code>cat-blob</code>).
+ * <p>
+ * When only the IDs are needed (e.g. for planning), the blobs can be hashed
+ * instead of inserted, so that the inserter only has to hold the trees,
+ * commits and tags.
+ */
+class FastExportReader {
+
+	// Paths and idents are kept as their bytes, one char per byte
+	private static final Charset RAW = StandardCharsets.ISO_8859_1;
+
+	private final ObjectInserter inserter;
+	private final boolean hashBlobs;
+	private final ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+	private final Map<Integer, ObjectId> marks = new HashMap<>();
+	private final Map<String, ObjectId> refs = new LinkedHashMap<>();
+
+	private BufferedInputStream in;
+	private ObjectReader reader;
+	private String pendingLine;
+
+	// The tree of the last commit, which the next one usually continues from
+	private ObjectId lastCommit;
+	private Entry lastRoot;
+
+	/**
+	 * @param inserter
+	 *            the inserter to write the objects with, must be able to read
+	 *            them back before they are flushed (which the inserters of JGit
+	 *            can)
+	 */
+	FastExportReader(ObjectInserter inserter) {
+		this(inserter, false);
+	}
+
+	/**
+	 * @param hashBlobs
+	 *            whether to only compute the IDs of the blobs instead of
+	 *            inserting them, the trees and commits are still inserted
+	 */
+	FastExportReader(ObjectInserter inserter, boolean hashBlobs) {
+		this.inserter = inserter;
+		this.hashBlobs = hashBlobs;
+	}
+
+	/**
+	 * @return the refs that the stream created, e.g. refs/heads/main, with the
+	 *         commit (or tag) they point to
+	 */
+	Map<String, ObjectId> read(InputStream stream) throws IOException {
+		in = new BufferedInputStream(stream, 65536);
+		try (ObjectReader objectReader = inserter.newReader()) {
+			reader = objectReader;
+			String line;
+			while ((line = nextLine()) != null) {
+				if (line.equals("blob")) {
+					readBlob();
+				} else if (line.startsWith("commit ")) {
+					readCommit(line.substring("commit ".length()));
+				} else if (line.startsWith("tag ")) {
+					readTag(line.substring("tag ".length()));
+				} else if (line.startsWith("reset ")) {
+					readReset(line.substring("reset ".length()));
+				} else if (line.equals("done")) {
+					break;
+				} else if (!line.isEmpty() && !line.startsWith("#") && !line.equals("checkpoint")
+						&& !line.startsWith("progress ") && !line.startsWith("feature ")
+						&& !line.startsWith("option ")) {
+					throw new IOException("Unsupported command in fast-export stream: " + line);
+				}
+			}
+		} finally {
+			reader = null;
+		}
+		return refs;
+	}
+
+	private void readBlob() throws IOException {
+		Integer mark = readMark();
+		readOptional("original-oid ");
+		long length = readDataLength();
+		ObjectId blobId = insertBlob(length, new DataStream(in, length));
+		readOptionalLf();
+		if (mark != null) {
+			marks.put(mark, blobId);
+		}
+	}
+
+	private void readCommit(String refName) throws IOException {
+		Integer mark = readMark();
+		readOptional("original-oid ");
+		String author = readOptional("author ");
+		String committer = readOptional("committer ");
+		if (committer == null) {
+			throw new IOException("Commit on " + refName + " without committer");
+		}
+		String encoding = readOptional("encoding ");
+		byte[] message = readData();
+
+		List<ObjectId> parents = new ArrayList<>();
+		String from = readOptional("from ");
+		ObjectId firstParent = from != null ? resolve(from) : refs.get(refName);
+		if (firstParent != null && !firstParent.equals(ObjectId.zeroId())) {
+			parents.add(firstParent);
+		}
+		String merge;
+		while ((merge = readOptional("merge ")) != null) {
+			parents.add(resolve(merge));
+		}
+
+		Entry root = getRoot(parents.isEmpty() ? null : parents.get(0));
+		root = readFileChanges(root);
+
+		StringBuilder header = new StringBuilder();
+		header.append("tree ").append(writeTree(root).name()).append('\n');
+		for (ObjectId parent : parents) {
+			header.append("parent ").append(parent.name()).append('\n');
+		}
+		header.append("author ").append(author != null ? author : committer).append('\n');
+		header.append("committer ").append(committer).append('\n');
+		if (encoding != null) {
+			header.append("encoding ").append(encoding).append('\n');
+		}
+		header.append('\n');
+		ObjectId commitId = inserter.insert(Constants.OBJ_COMMIT, concat(header, message));
+
+		refs.put(refName, commitId);
+		if (mark != null) {
+			marks.put(mark, commitId);
+		}
+		lastCommit = commitId;
+		lastRoot = root;
+	}
+
+	private void readTag(String tagName) throws IOException {
+		Integer mark = readMark();
+		String from = readOptional("from ");
+		if (from == null) {
+			throw new IOException("Tag " + tagName + " without from");
+		}
+		ObjectId objectId = resolve(from);
+		readOptional("original-oid ");
+		String tagger = readOptional("tagger ");
+		byte[] message = readData();
+
+		StringBuilder header = new StringBuilder();
+		header.append("object ").append(objectId.name()).append('\n');
+		header.append("type ").append(Constants.typeString(getType(objectId))).append('\n');
+		header.append("tag ").append(tagName).append('\n');
+		if (tagger != null) {
+			header.append("tagger ").append(tagger).append('\n');
+		}
+		header.append('\n');
+		ObjectId tagId = inserter.insert(Constants.OBJ_TAG, concat(header, message));
+
+		refs.put(Constants.R_TAGS + tagName, tagId);
+		if (mark != null) {
+			marks.put(mark, tagId);
+		}
+	}
+
+	private ObjectId insertBlob(long length, InputStream data) throws IOException {
+		if (hashBlobs) {
+			return formatter.idFor(Constants.OBJ_BLOB, length, data);
+		}
+		return inserter.insert(Constants.OBJ_BLOB, length, data);
+	}
+
+	private int getType(ObjectId objectId) throws IOException {
+		if (hashBlobs && !reader.has(objectId)) {
+			// Only the blobs were not inserted
+			return Constants.OBJ_BLOB;
+		}
+		return reader.open(objectId).getType();
+	}
+
+	private void readReset(String refName) throws IOException {
+		String from = readOptional("from ");
+		ObjectId objectId = from != null ? resolve(from) : null;
+		// Without from (or with the zero ID), the next commit on it has no parent
+		if (objectId == null || objectId.equals(ObjectId.zeroId())) {
+			refs.remove(refName);
+		} else {
+			refs.put(refName, objectId);
+		}
+	}
+
+	/**
+	 * Applies the file changes of a commit to the tree of its parent.
+	 *
+	 * @return the root of the changed tree
+	 */
+	private Entry readFileChanges(Entry root) throws IOException {
+		String line;
+		while ((line = peekLine()) != null) {
+			if (line.startsWith("M ")) {
+				nextLine();
+				// M <mode> <dataref> <path>
+				int modeEnd = line.indexOf(' ', 2);
+				int dataRefEnd = line.indexOf(' ', modeEnd + 1);
+				if (modeEnd == -1 || dataRefEnd == -1) {
+					throw new IOException("Invalid file change in fast-export stream: " + line);
+				}
+				FileMode mode = parseMode(line.substring(2, modeEnd));
+				String dataRef = line.substring(modeEnd + 1, dataRefEnd);
+				String path = parsePath(line.substring(dataRefEnd + 1));
+				ObjectId objectId;
+				if (dataRef.equals("inline")) {
+					byte[] data = readData();
+					objectId = insertBlob(data.length, new ByteArrayInputStream(data));
+				} else {
+					objectId = resolve(dataRef);
+				}
+				put(root, path, new Entry(mode, objectId));
+			} else if (line.startsWith("D ")) {
+				nextLine();
+				remove(root, parsePath(line.substring(2)));
+			} else if (line.startsWith("C ") || line.startsWith("R ")) {
+				nextLine();
+				String[] paths = parseSourceAndTarget(line.substring(2));
+				Entry source = get(root, paths[0]);
+				if (source == null) {
+					throw new IOException("Path not found in fast-export stream: " + line);
+				}
+				// Directories are copied by their (written) tree
+				ObjectId sourceId = source.mode == FileMode.TREE ? writeTree(source) : source.id;
+				if (line.startsWith("R ")) {
+					remove(root, paths[0]);
+				}
+				put(root, paths[1], new Entry(source.mode, sourceId));
+			} else if (line.equals("deleteall")) {
+				nextLine();
+				root = new Entry(FileMode.TREE, null);
+				root.children = new TreeMap<>();
+			} else if (line.startsWith("N ")) {
+				throw new IOException("Notes in fast-export streams are not supported: " + line);
+			} else {
+				if (line.isEmpty()) {
+					nextLine();
+				}
+				break;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * @return the root of the tree of the parent, to be changed by the commit
+	 */
+	private Entry getRoot(ObjectId parent) throws IOException {
+		if (parent == null) {
+			Entry root = new Entry(FileMode.TREE, null);
+			root.children = new TreeMap<>();
+			return root;
+		}
+		if (parent.equals(lastCommit)) {
+			// Its tree has been written, so it can be changed in place
+			return lastRoot;
+		}
+		try (RevWalk revWalk = new RevWalk(reader)) {
+			return new Entry(FileMode.TREE, revWalk.parseCommit(parent).getTree().copy());
+		}
+	}
+
+	private Entry get(Entry root, String path) throws IOException {
+		Entry entry = root;
+		for (String name : path.split("/")) {
+			if (entry.mode != FileMode.TREE) {
+				return null;
+			}
+			entry = load(entry).get(name);
+			if (entry == null) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	private void put(Entry root, String path, Entry newEntry) throws IOException {
+		String[] names = path.split("/");
+		Entry dir = root;
+		for (int i = 0; i < names.length - 1; i++) {
+			dir.id = null;
+			Entry child = load(dir).get(names[i]);
+			if (child == null || child.mode != FileMode.TREE) {
+				child = new Entry(FileMode.TREE, null);
+				child.children = new TreeMap<>();
+				dir.children.put(names[i], child);
+			}
+			dir = child;
+		}
+		dir.id = null;
+		load(dir).put(names[names.length - 1], newEntry);
+	}
+
+	private void remove(Entry root, String path) throws IOException {
+		if (get(root, path) == null) {
+			return;
+		}
+		String[] names = path.split("/");
+		Entry dir = root;
+		for (int i = 0; i < names.length - 1; i++) {
+			dir.id = null;
+			dir = dir.children.get(names[i]);
+		}
+		dir.id = null;
+		dir.children.remove(names[names.length - 1]);
+	}
+
+	/**
+	 * @return the entries of the directory, read from its tree if they were
+	 *         not loaded yet
+	 */
+	private TreeMap<String, Entry> load(Entry dir) throws IOException {
+		if (dir.children == null) {
+			dir.children = new TreeMap<>();
+			CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, dir.id);
+			for (; !parser.eof(); parser.next()) {
+				String name = new String(parser.getEntryPathBuffer(), 0,
+						parser.getEntryPathLength(), RAW);
+				dir.children.put(name, new Entry(parser.getEntryFileMode(),
+						parser.getEntryObjectId()));
+			}
+		}
+		return dir.children;
+	}
+
+	/**
+	 * Writes the changed directories of the tree.
+	 *
+	 * @return the ID of the tree, the empty tree for an empty root
+	 */
+	private ObjectId writeTree(Entry dir) throws IOException {
+		ObjectId treeId = write(dir);
+		return treeId != null ? treeId : inserter.insert(new TreeFormatter());
+	}
+
+	/**
+	 * @return the ID of the tree, or null if it is empty (and therefore left
+	 *         out of its parent)
+	 */
+	private ObjectId write(Entry dir) throws IOException {
+		if (dir.id != null) {
+			return dir.id;
+		}
+		// Directories are sorted as if their name ended with a slash
+		TreeMap<String, Entry> sorted = new TreeMap<>();
+		for (Map.Entry<String, Entry> child : dir.children.entrySet()) {
+			boolean isTree = child.getValue().mode == FileMode.TREE;
+			sorted.put(isTree ? child.getKey() + "/" : child.getKey(), child.getValue());
+		}
+		TreeFormatter formatter = new TreeFormatter();
+		boolean empty = true;
+		for (Map.Entry<String, Entry> child : sorted.entrySet()) {
+			Entry entry = child.getValue();
+			byte[] name = child.getKey().getBytes(RAW);
+			if (entry.mode == FileMode.TREE) {
+				ObjectId childId = write(entry);
+				if (childId != null) {
+					formatter.append(name, 0, name.length - 1, FileMode.TREE, childId);
+					empty = false;
+				}
+			} else {
+				formatter.append(name, entry.mode, entry.id);
+				empty = false;
+			}
+		}
+		if (empty) {
+			return null;
+		}
+		dir.id = inserter.insert(formatter);
+		return dir.id;
+	}
+
+	/**
+	 * @return the object of a mark (:1), an object ID, or a ref created
+	 *         earlier in the stream
+	 */
+	private ObjectId resolve(String commitish) throws IOException {
+		if (commitish.startsWith(":")) {
+			ObjectId objectId = marks.get(parseNumber(commitish.substring(1)));
+			if (objectId == null) {
+				throw new IOException("Unknown mark in fast-export stream: " + commitish);
+			}
+			return objectId;
+		}
+		if (ObjectId.isId(commitish)) {
+			return ObjectId.fromString(commitish);
+		}
+		ObjectId objectId = refs.get(commitish);
+		if (objectId == null) {
+			throw new IOException("Unknown ref in fast-export stream: " + commitish);
+		}
+		return objectId;
+	}
+
+	private Integer readMark() throws IOException {
+		String mark = readOptional("mark :");
+		return mark != null ? parseNumber(mark) : null;
+	}
+
+	/**
+	 * @return the rest of the next line if it starts with the prefix (then the
+	 *         line is consumed), null otherwise
+	 */
+	private String readOptional(String prefix) throws IOException {
+		String line = peekLine();
+		if (line != null && line.startsWith(prefix)) {
+			pendingLine = null;
+			return line.substring(prefix.length());
+		}
+		return null;
+	}
+
+	private byte[] readData() throws IOException {
+		String line = nextLine();
+		if (line != null && line.startsWith("data <<")) {
+			// Delimited format, ends with a line with only the delimiter
+			String delimiter = line.substring("data <<".length());
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			while (!delimiter.equals(line = nextLine())) {
+				if (line == null) {
+					throw new EOFException("Fast-export stream ended within data");
+				}
+				data.write(line.getBytes(RAW));
+				data.write('\n');
+			}
+			readOptionalLf();
+			return data.toByteArray();
+		}
+		pendingLine = line;
+		long length = readDataLength();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Data too large in fast-export stream: " + length);
+		}
+		byte[] data = new byte[(int) length];
+		try {
+			IO.readFully(in, data, 0, data.length);
+		} catch (EOFException e) {
+			throw new EOFException("Fast-export stream ended within data");
+		}
+		readOptionalLf();
+		return data;
+	}
+
+	/**
+	 * Reads a data command of the exact byte count format, the data follows.
+	 */
+	private long readDataLength() throws IOException {
+		String line = nextLine();
+		if (line == null) {
+			throw new EOFException("Fast-export stream ended before data");
+		}
+		if (!line.startsWith("data ") || line.startsWith("data <<")) {
+			throw new IOException("Expected data with a byte count in fast-export stream: "
+					+ line);
+		}
+		long length;
+		try {
+			length = Long.parseLong(line.substring("data ".length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid data in fast-export stream: " + line, e);
+		}
+		if (length < 0) {
+			throw new IOException("Invalid data in fast-export stream: " + line);
+		}
+		return length;
+	}
+
+	private void readOptionalLf() throws IOException {
+		in.mark(1);
+		if (in.read() != '\n') {
+			in.reset();
+		}
+	}
+
+	private String peekLine() throws IOException {
+		if (pendingLine == null) {
+			pendingLine = readLine();
+		}
+		return pendingLine;
+	}
+
+	private String nextLine() throws IOException {
+		String line = peekLine();
+		pendingLine = null;
+		return line;
+	}
+
+	/**
+	 * @return the next line without the LF, or null at the end of the stream
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		return line.toString(RAW);
+	}
+
+	/**
+	 * @return the source and target path of a copy or rename, the source is
+	 *         quoted if it contains a space
+	 */
+	private static String[] parseSourceAndTarget(String paths) throws IOException {
+		int sourceEnd;
+		if (paths.startsWith("\"")) {
+			sourceEnd = paths.indexOf('"', 1);
+			while (sourceEnd != -1 && isEscaped(paths, sourceEnd)) {
+				sourceEnd = paths.indexOf('"', sourceEnd + 1);
+			}
+			sourceEnd = sourceEnd != -1 ? sourceEnd + 1 : -1;
+		} else {
+			sourceEnd = paths.indexOf(' ');
+		}
+		if (sourceEnd == -1 || sourceEnd >= paths.length()) {
+			throw new IOException("Invalid copy or rename in fast-export stream: " + paths);
+		}
+		return new String[] { parsePath(paths.substring(0, sourceEnd)),
+				parsePath(paths.substring(sourceEnd + 1)) };
+	}
+
+	private static boolean isEscaped(String s, int index) {
+		int backslashes = 0;
+		while (index - backslashes - 1 >= 0 && s.charAt(index - backslashes - 1) == '\\') {
+			backslashes++;
+		}
+		return backslashes % 2 == 1;
+	}
+
+	/**
+	 * @return the path, unquoted if it is a C-style quoted string
+	 */
+	private static String parsePath(String path) throws IOException {
+		if (path.isEmpty()) {
+			throw new IOException("Empty path in fast-export stream");
+		}
+		if (!path.startsWith("\"")) {
+			return path;
+		}
+		if (path.length() < 2 || !path.endsWith("\"") || isEscaped(path, path.length() - 1)) {
+			throw new IOException("Invalid quoted path in fast-export stream: " + path);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i < path.length() - 1; i++) {
+			char c = path.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = path.charAt(++i);
+			switch (c) {
+			case 'a': sb.append('\u0007'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'v': sb.append('\u000b'); break;
+			default:
+				if (c >= '0' && c <= '3' && i + 2 < path.length() - 1
+						&& isOctal(path.charAt(i + 1)) && isOctal(path.charAt(i + 2))) {
+					// Octal escape of a byte, e.g. for UTF-8 names
+					sb.append((char) Integer.parseInt(path.substring(i, i + 3), 8));
+					i += 2;
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isOctal(char c) {
+		return c >= '0' && c <= '7';
+	}
+
+	private static FileMode parseMode(String mode) throws IOException {
+		switch (mode) {
+		case "644":
+		case "100644":
+			return FileMode.REGULAR_FILE;
+		case "755":
+		case "100755":
+			return FileMode.EXECUTABLE_FILE;
+		case "120000":
+			return FileMode.SYMLINK;
+		case "160000":
+			return FileMode.GITLINK;
+		case "040000":
+			return FileMode.TREE;
+		default:
+			throw new IOException("Unsupported file mode in fast-export stream: " + mode);
+		}
+	}
+
+	private static int parseNumber(String number) throws IOException {
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid mark in fast-export stream: " + number, e);
+		}
+	}
+
+	private static byte[] concat(StringBuilder header, byte[] body) {
+		byte[] headerBytes = header.toString().getBytes(RAW);
+		byte[] bytes = new byte[headerBytes.length + body.length];
+		System.arraycopy(headerBytes, 0, bytes, 0, headerBytes.length);
+		System.arraycopy(body, 0, bytes, headerBytes.length, body.length);
+		return bytes;
+	}
+
+	/**
+	 * The data of a blob, for streaming it into the inserter without reading
+	 * past it (the inserters read small objects until the stream ends).
+	 */
+	private static class DataStream extends FilterInputStream {
+		private long remaining;
+
+		DataStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("Fast-export stream ended within data");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n == -1) {
+				throw new EOFException("Fast-export stream ended within data");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// The stream continues after the data
+		}
+	}
+
+	/**
+	 * A file or directory in the tree of a commit. A directory has either an
+	 * ID (if unchanged since it was written or read) or loaded children, or
+	 * both.
+	 */
+	private static class Entry {
+		private final FileMode mode;
+		private ObjectId id;
+		private TreeMap<String, Entry> children;
+
+		Entry(FileMode mode, ObjectId id) {
+			this.mode = mode;
+			this.id = id;
+		}
+	}
+}
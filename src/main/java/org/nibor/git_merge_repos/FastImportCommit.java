@@ -0,0 +1,72 @@
+package org.nibor.git_merge_repos;
+
+import java.util.List;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * A merge commit that has not been written to a repository, but is to be
+ * written as a commit command of a fast-import stream. Its tree is described
+ * by existing trees and files and the paths they go to.
+ */
+class FastImportCommit {
+
+	private final List<ObjectId> parentIds;
+	private final PersonIdent ident;
+	private final String message;
+	private final List<FileModify> fileModifies;
+
+	FastImportCommit(List<ObjectId> parentIds, PersonIdent ident, String message,
+			List<FileModify> fileModifies) {
+		this.parentIds = parentIds;
+		this.ident = ident;
+		this.message = message;
+		this.fileModifies = fileModifies;
+	}
+
+	List<ObjectId> getParentIds() {
+		return parentIds;
+	}
+
+	PersonIdent getIdent() {
+		return ident;
+	}
+
+	String getMessage() {
+		return message;
+	}
+
+	List<FileModify> getFileModifies() {
+		return fileModifies;
+	}
+
+	/**
+	 * An existing tree or file and the path in the merged tree where it goes
+	 * (empty for the root).
+	 */
+	static class FileModify {
+		private final byte[] path;
+		private final FileMode mode;
+		private final ObjectId objectId;
+
+		FileModify(byte[] path, FileMode mode, ObjectId objectId) {
+			this.path = path;
+			this.mode = mode;
+			this.objectId = objectId;
+		}
+
+		byte[] getPath() {
+			return path;
+		}
+
+		FileMode getMode() {
+			return mode;
+		}
+
+		ObjectId getObjectId() {
+			return objectId;
+		}
+	}
+}
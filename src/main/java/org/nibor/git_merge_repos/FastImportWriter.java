@@ -0,0 +1,124 @@
+package org.nibor.git_merge_repos;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * Writes merge commits, tags and ref resets as a stream for
+ * <code>git fast-import</code>.
+ * <p>
+ * The commits only reference their parents and the trees and files they
+ * consist of by ID, so the repository that the stream is imported into must
+ * already contain the objects of the input repositories.
+ */
+class FastImportWriter {
+
+	private final OutputStream out;
+	private int nextMark = 1;
+
+	FastImportWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out, 65536);
+	}
+
+	/**
+	 * @return the mark of the commit, for referencing it in later commands
+	 */
+	int writeCommit(String refName, FastImportCommit commit) throws IOException {
+		int mark = nextMark++;
+		write("commit " + refName + "\n");
+		write("mark :" + mark + "\n");
+		write("author " + formatIdent(commit.getIdent()) + "\n");
+		write("committer " + formatIdent(commit.getIdent()) + "\n");
+		writeData(commit.getMessage());
+		List<ObjectId> parentIds = commit.getParentIds();
+		for (int i = 0; i < parentIds.size(); i++) {
+			write((i == 0 ? "from " : "merge ") + parentIds.get(i).name() + "\n");
+		}
+		write("deleteall\n");
+		for (FastImportCommit.FileModify fileModify : commit.getFileModifies()) {
+			write("M " + Integer.toOctalString(fileModify.getMode().getBits()) + " "
+					+ fileModify.getObjectId().name() + " ");
+			writeQuotedPath(fileModify.getPath());
+			write("\n");
+		}
+		write("\n");
+		return mark;
+	}
+
+	/**
+	 * @param tagger
+	 *            the tagger, or null if the tag has none
+	 */
+	void writeTag(String tagName, int commitMark, PersonIdent tagger, String message)
+			throws IOException {
+		write("tag " + tagName + "\n");
+		write("from :" + commitMark + "\n");
+		if (tagger != null) {
+			write("tagger " + formatIdent(tagger) + "\n");
+		}
+		writeData(message);
+	}
+
+	/**
+	 * Writes a reset that deletes the ref.
+	 */
+	void writeDelete(String refName) throws IOException {
+		write("reset " + refName + "\n");
+		write("from " + ObjectId.zeroId().name() + "\n");
+		write("\n");
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the data followed by the optional LF, which also ends the
+	 * command if nothing follows.
+	 */
+	private void writeData(String data) throws IOException {
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		write("data " + bytes.length + "\n");
+		out.write(bytes);
+		write("\n");
+	}
+
+	/**
+	 * Writes the path as a C-style quoted string, which is always allowed and
+	 * works for all characters, including the empty path for the root.
+	 */
+	private void writeQuotedPath(byte[] path) throws IOException {
+		out.write('"');
+		for (byte b : path) {
+			if (b == '"' || b == '\\') {
+				out.write('\\');
+				out.write(b);
+			} else if (b == '\n') {
+				out.write('\\');
+				out.write('n');
+			} else {
+				out.write(b);
+			}
+		}
+		out.write('"');
+	}
+
+	private void write(String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String formatIdent(PersonIdent ident) {
+		int offset = ident.getTimeZoneOffset();
+		char sign = offset < 0 ? '-' : '+';
+		offset = Math.abs(offset);
+		return ident.getName() + " <" + ident.getEmailAddress() + "> "
+				+ (ident.getWhen().getTime() / 1000) + " "
+				+ String.format("%c%02d%02d", sign, offset / 60, offset % 60);
+	}
+}
@@ -0,0 +1,62 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Hands out one long-lived object inserter per thread, so that all objects of a
+ * run can be written by the same few inserters.
+ * <p>
+ * In pack mode, the inserted objects are streamed into one pack file per
+ * thread, which is only written (together with its index) on {@link #flush()}.
+ * Objects are not visible to other readers of the repository before that.
+ */
+class InserterPool implements AutoCloseable {
+
+	private final Repository repository;
+	private final boolean pack;
+	private final Map<Thread, ObjectInserter> inserters = new ConcurrentHashMap<>();
+
+	InserterPool(Repository repository, boolean pack) {
+		this.repository = repository;
+		this.pack = pack;
+	}
+
+	/**
+	 * @return the inserter of the current thread
+	 */
+	ObjectInserter get() {
+		return inserters.computeIfAbsent(Thread.currentThread(), thread -> newInserter());
+	}
+
+	/**
+	 * Flushes the inserters of all threads. Must not be called while other
+	 * threads are still inserting.
+	 */
+	void flush() throws IOException {
+		for (ObjectInserter inserter : inserters.values()) {
+			inserter.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (ObjectInserter inserter : inserters.values()) {
+			inserter.close();
+		}
+		inserters.clear();
+	}
+
+	private ObjectInserter newInserter() {
+		if (pack) {
+			return ((ObjectDirectory) repository.getObjectDatabase()).newPackInserter();
+		} else {
+			return repository.newObjectInserter();
+		}
+	}
+}
@@ -1,75 +1,244 @@
 package org.nibor.git_merge_repos;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.transport.URIish;
 
 /**
  * Main class for merging repositories via command-line.
  */
 public class Main {
-	private static final String USAGE = "usage: program <repository_url>:<target_directory>...";
-	private static final Pattern REPO_AND_DIR = Pattern.compile("(.*):([^:]+)");
+	private static final String USAGE = "usage: program [<options>] <repository_url>:<target_directory>...\n"
+			+ "   or: program --serve[=<port>]\n"
+			+ "\n"
+			+ "options:\n"
+			+ "  --fetch-threads=<n>  number of repositories to fetch in parallel (default: "
+			+ RepoMerger.DEFAULT_FETCH_THREADS + ")\n"
+			+ "  --fetch-retries=<n>  number of retries for a failed fetch (default: "
+			+ RepoMerger.DEFAULT_FETCH_RETRIES + ")\n"
+			+ "  --merge-threads=<n>  number of threads creating merge commits (default: 1)\n"
+			+ "  --pack-objects       write new objects into a pack instead of loose objects\n"
+			+ "  --object-cache=<mb>  memory for parsed commits and tags per merge thread (default: "
+			+ RepoMerger.DEFAULT_OBJECT_CACHE_MB + ")\n"
+			+ "  --incremental        update an existing output directory, only merging changed refs\n"
+			+ "  --bare               create a bare repository without checking out files\n"
+			+ "  --reftable           store the refs of the output repository in a reftable\n"
+			+ "                       (faster with many refs, needs git 2.45 or later to read)\n"
+			+ "  --output=<dir>       output directory (default: merged-repo, or merged-repo.git)\n"
+			+ "  --plan               only list the refs of the repositories and print what would be\n"
+			+ "                       merged, without fetching or changing anything\n"
+			+ "  --shard=<i>/<n>      only merge the i-th of n shares of the refs (i from 0 to n-1)\n"
+			+ "  --combine=<dir>      combine the outputs of all shards instead of merging, run with\n"
+			+ "                       the same repositories and options (repeatable, one per shard)\n"
+			+ "  --fast-import=<file> write merge commits as a git fast-import stream to <file>\n"
+			+ "                       (- for stdout) instead of creating them\n"
+			+ "  --validate           check all refs for overlapping paths before merging any\n"
+			+ "  --link-local         use objects of local repositories in place instead of fetching\n"
+			+ "  --repack             repack all objects into one pack with bitmaps at the end\n"
+			+ "                       (makes --link-local output standalone)\n"
+			+ "  --repack-threads=<n> threads for searching deltas when repacking (default: all)\n"
+			+ "  --repack-memory=<mb> memory for searching deltas when repacking (default: JGit's)\n"
+			+ "  --mirror-cache=<dir> keep mirrors of remote repositories in <dir> across runs and\n"
+			+ "                       only fetch new objects into them\n"
+			+ "  --mirror-cache-size=<mb>  size above which the least recently used mirrors are\n"
+			+ "                       deleted (default: " + RepoMerger.DEFAULT_MIRROR_CACHE_MB + ")\n"
+			+ "  --include=[<repo>:]<pattern>  only merge branches and tags matching the pattern,\n"
+			+ "                       e.g. refs/heads/release/** or regex:refs/tags/v[0-9]+ (repeatable)\n"
+			+ "  --exclude=[<repo>:]<pattern>  don't merge branches and tags matching the pattern (repeatable)\n"
+			+ "  --serve[=<port>]     run a server on localhost that takes merge jobs over HTTP (default port: "
+			+ MergeServer.DEFAULT_PORT + ")";
+	// Status output, goes to stderr when stdout is used for the fast-import stream
+	private static PrintStream log = System.out;
 
-	public static void main(String[] args) throws IOException, GitAPIException, URISyntaxException {
+	public static void main(String[] args) throws IOException, GitAPIException {
 		if (args.length >= 1 && (args[0].equals("-h") || args[0].equals("--help"))) {
 			exit(USAGE, 0);
 		}
+		if (args.length == 1 && args[0].startsWith("--serve")) {
+			serve(args[0]);
+			return;
+		}
 
-		List<SubtreeConfig> subtreeConfigs = new ArrayList<>();
+		MergeJob job = null;
+		try {
+			job = MergeJob.parse(Arrays.asList(args));
+		} catch (IllegalArgumentException e) {
+			exitInvalidUsage(args.length == 0 ? USAGE : e.getMessage());
+		}
+		List<SubtreeConfig> subtreeConfigs = job.getSubtreeConfigs();
+		boolean incremental = job.isIncremental();
+		boolean bare = job.isBare();
+		String fastImport = job.getFastImport();
+		if ("-".equals(fastImport)) {
+			log = System.err;
+		}
+		File outputDirectory = job.getOutputDirectory();
+		String outputPath = outputDirectory.getAbsolutePath();
+		if (job.isPlan()) {
+			plan(job);
+			return;
+		}
+		if (outputDirectory.exists() && !incremental) {
+			exit("Error: Output directory already exists (please remove it and rerun, "
+					+ "or use --incremental to update it): " + outputPath, 1);
+		}
+		if (job.isCombine()) {
+			log.println("Started combining " + job.getCombineDirectories().size() + " shards of "
+					+ subtreeConfigs.size() + " repositories, output directory: " + outputPath);
+		} else {
+			log.println("Started merging " + subtreeConfigs.size()
+					+ " repositories into one, output directory: " + outputPath);
+		}
 
-		for (String arg : args) {
-			Matcher matcher = REPO_AND_DIR.matcher(arg);
-			if (matcher.matches()) {
-				String repositoryUrl = matcher.group(1);
-				String directory = matcher.group(2);
-				SubtreeConfig config = new SubtreeConfig(directory, new URIish(repositoryUrl));
-				subtreeConfigs.add(config);
-			} else {
-				exitInvalidUsage("invalid argument '" + arg
-						+ "', expected '<repository_url>:<target_directory>'");
+		long start = System.currentTimeMillis();
+		RepoMerger merger = new RepoMerger(outputDirectory, subtreeConfigs, bare);
+		job.configure(merger);
+		merger.setMergedRefListener(Main::printIfIncomplete);
+		if (job.isCombine()) {
+			merger.combine(job.getCombineDirectories());
+		} else if (fastImport != null) {
+			boolean stdout = fastImport.equals("-");
+			OutputStream fastImportOutput = stdout ? System.out : new FileOutputStream(fastImport);
+			try {
+				merger.setFastImportOutput(fastImportOutput);
+				merger.run();
+			} finally {
+				if (!stdout) {
+					fastImportOutput.close();
+				}
 			}
+		} else {
+			merger.run();
 		}
+		long end = System.currentTimeMillis();
 
-		if (subtreeConfigs.isEmpty()) {
-			exitInvalidUsage(USAGE);
+		long timeMs = (end - start);
+		log.println("Merged refs: " + merger.getMergedRefCount() + ", not in all repositories: "
+				+ merger.getIncompleteRefCount());
+		printMergeCacheStatistics(merger.getMergeCache());
+		printObjectCacheStatistics(merger.getStatistics());
+		printPhases(merger.getStatistics());
+		printRepackSizes(merger.getStatistics());
+		if (job.hasMirrorCache()) {
+			printMirrorCacheStatistics(merger.getStatistics());
 		}
-
-		File outputDirectory = new File("merged-repo");
-		String outputPath = outputDirectory.getAbsolutePath();
-		if (outputDirectory.exists()) {
-			exit("Error: Output directory already exists (please remove it and rerun): " + outputPath, 1);
+		if (incremental) {
+			log.println("Unchanged refs (not merged again): " + merger.getUnchangedRefCount());
+		}
+		log.println("Done, took " + timeMs + " ms");
+		log.println("Merged repository: " + outputPath);
+		File reportFile = getReportFile(outputDirectory);
+		merger.getStatistics().writeReport(reportFile);
+		log.println("Run report: " + reportFile.getAbsolutePath());
+		if (fastImport != null) {
+			log.println("Import the stream into it to create the merged refs, e.g.: "
+					+ "git --git-dir=" + repositoryPath(outputDirectory, bare)
+					+ " fast-import < " + (fastImport.equals("-") ? "<stream>" : fastImport));
 		}
-		System.out.println("Started merging " + subtreeConfigs.size()
-				+ " repositories into one, output directory: " + outputPath);
 
+	}
+
+	private static void plan(MergeJob job) throws IOException {
+		log.println("Planning merge of " + job.getSubtreeConfigs().size()
+				+ " repositories from their advertised refs, output directory: "
+				+ job.getOutputDirectory().getAbsolutePath());
 		long start = System.currentTimeMillis();
-		RepoMerger merger = new RepoMerger(outputDirectory, subtreeConfigs);
-		List<MergedRef> mergedRefs = merger.run();
+		RepoMerger merger = new RepoMerger(job.getOutputDirectory(), job.getSubtreeConfigs(),
+				job.isBare());
+		job.configure(merger);
+		merger.setMergedRefListener(Main::printIfIncomplete);
+		MergePlan plan = merger.plan();
 		long end = System.currentTimeMillis();
 
-		long timeMs = (end - start);
-		printIncompleteRefs(mergedRefs);
-		System.out.println("Done, took " + timeMs + " ms");
-		System.out.println("Merged repository: " + outputPath);
+		log.println("Refs: " + plan.getBranchCount() + " branches, " + plan.getTagCount()
+				+ " tags, " + plan.getIncompleteRefCount() + " not in all repositories, "
+				+ plan.getUnchangedRefCount() + " unchanged");
+		log.println("Would merge " + plan.getMergeCount() + " refs, with "
+				+ plan.getCommitCombinationCount() + " distinct combinations of commits");
+		printPhases(merger.getStatistics());
+		log.println("Done, took " + (end - start) + " ms");
+	}
+
+	private static void serve(String arg) throws IOException {
+		int port = MergeServer.DEFAULT_PORT;
+		if (arg.startsWith("--serve=")) {
+			try {
+				port = Integer.parseInt(arg.substring("--serve=".length()));
+			} catch (NumberFormatException e) {
+				exitInvalidUsage("invalid value for option '--serve', expected a port: "
+						+ arg.substring("--serve=".length()));
+			}
+		} else if (!arg.equals("--serve")) {
+			exitInvalidUsage("unknown option '" + arg + "'");
+		}
+		MergeServer server = new MergeServer(port);
+		server.start();
+		log.println("Merge server listening on http://localhost:" + server.getPort()
+				+ "/jobs, working directory: " + new File("").getAbsolutePath());
+	}
+
+	private static void printIfIncomplete(MergedRef mergedRef) {
+		if (!mergedRef.isComplete()) {
+			log.println(mergedRef.getRefType() + " '" + mergedRef.getRefName()
+					+ "' was not in: " + join(mergedRef.getConfigsWithoutRef()));
+		}
+	}
 
+	private static void printMergeCacheStatistics(MergeCache mergeCache) {
+		log.println("Merged tree cache: " + mergeCache.getTreeHits() + " hits, "
+				+ mergeCache.getTreeMisses() + " misses");
 	}
 
-	private static void printIncompleteRefs(List<MergedRef> mergedRefs) {
-		for (MergedRef mergedRef : mergedRefs) {
-			if (!mergedRef.getConfigsWithoutRef().isEmpty()) {
-				System.out.println(mergedRef.getRefType() + " '" + mergedRef.getRefName()
-						+ "' was not in: " + join(mergedRef.getConfigsWithoutRef()));
+	private static void printObjectCacheStatistics(MergeStatistics statistics) {
+		log.println("Parsed object cache: " + statistics.getObjectCacheHits() + " hits, "
+				+ statistics.getObjectCacheMisses() + " misses, "
+				+ statistics.getObjectCacheEvictions() + " evictions, peak "
+				+ (statistics.getObjectCachePeakBytes() / 1024) + " KiB per thread");
+	}
+
+	private static void printMirrorCacheStatistics(MergeStatistics statistics) {
+		log.println("Mirror cache: " + (statistics.getMirrorBytesFetched() / 1024)
+				+ " KiB fetched into mirrors, " + statistics.getMirrorsEvicted()
+				+ " mirrors evicted");
+	}
+
+	private static void printRepackSizes(MergeStatistics statistics) {
+		if (statistics.getRepackBytesAfter() != -1) {
+			log.println("Repacked objects: " + (statistics.getRepackBytesBefore() / 1024)
+					+ " KiB before, " + (statistics.getRepackBytesAfter() / 1024) + " KiB after");
+		}
+	}
+
+	private static void printPhases(MergeStatistics statistics) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> phase : statistics.getPhaseMillis().entrySet()) {
+			if (sb.length() != 0) {
+				sb.append(", ");
 			}
+			sb.append(phase.getKey()).append(" ").append(phase.getValue()).append(" ms");
 		}
+		log.println("Phases: " + sb);
+	}
+
+	/**
+	 * @return the file next to the output directory that the run report is
+	 *         written to, e.g. merged-repo-report.json
+	 */
+	private static File getReportFile(File outputDirectory) {
+		String name = outputDirectory.getName().replaceFirst("\\.git$", "");
+		return new File(outputDirectory.getAbsoluteFile().getParentFile(), name + "-report.json");
+	}
+
+	private static String repositoryPath(File outputDirectory, boolean bare) {
+		return bare ? outputDirectory.getPath() : new File(outputDirectory, ".git").getPath();
 	}
 
 	private static String join(Collection<SubtreeConfig> configs) {
@@ -0,0 +1,81 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Remembers merged trees, so that refs that point to the same commits don't
+ * have to be merged again. Safe for use by multiple threads.
+ * <p>
+ * The cached objects may not have been flushed yet by the inserter that created
+ * them, so they must only be referenced by new objects and not read.
+ */
+public class MergeCache {
+
+	private final Map<List<Object>, ObjectId> trees = new ConcurrentHashMap<>();
+
+	private final AtomicLong treeHits = new AtomicLong();
+	private final AtomicLong treeMisses = new AtomicLong();
+
+	public long getTreeHits() {
+		return treeHits.get();
+	}
+
+	public long getTreeMisses() {
+		return treeMisses.get();
+	}
+
+	ObjectId getTree(List<Object> key) {
+		ObjectId treeId = trees.get(key);
+		if (treeId != null) {
+			treeHits.incrementAndGet();
+		} else {
+			treeMisses.incrementAndGet();
+		}
+		return treeId;
+	}
+
+	void putTree(List<Object> key, ObjectId treeId) {
+		trees.put(key, treeId.copy());
+	}
+
+	/**
+	 * Removes the trees that the repository doesn't have, e.g. because they
+	 * were pruned after the run that merged them. Must not be called while
+	 * merging, when the trees may not have been flushed yet.
+	 */
+	void retainExisting(Repository repository) throws IOException {
+		try (ObjectReader reader = repository.newObjectReader()) {
+			Iterator<ObjectId> treeIds = trees.values().iterator();
+			while (treeIds.hasNext()) {
+				if (!reader.has(treeIds.next(), Constants.OBJ_TREE)) {
+					treeIds.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return key for the merged tree of the parents, consisting of the
+	 *         ordered (subtree directory, tree ID) pairs
+	 */
+	static List<Object> treeKey(Map<SubtreeConfig, RevCommit> parentCommits) {
+		List<Object> key = new ArrayList<>(parentCommits.size() * 2);
+		for (Map.Entry<SubtreeConfig, RevCommit> entry : parentCommits.entrySet()) {
+			key.add(entry.getKey().getSubtreeDirectory());
+			key.add(entry.getValue().getTree().copy());
+		}
+		return key;
+	}
+}
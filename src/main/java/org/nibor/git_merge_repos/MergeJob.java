@@ -0,0 +1,317 @@
+package org.nibor.git_merge_repos;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * The repositories and options of one merge, parsed from the command-line
+ * arguments (or the arguments of a job for {@link MergeServer}).
+ * <p>
+ * All arguments are parsed up front, so that invalid ones are reported before
+ * anything is fetched or merged.
+ */
+class MergeJob {
+
+	private static final Pattern OPTION = Pattern.compile("--([a-z-]+)(?:=(.*))?");
+	private static final Pattern REPO_AND_DIR = Pattern.compile("(.*):([^:]+)");
+
+	private final List<SubtreeConfig> subtreeConfigs = new ArrayList<>();
+	private final Map<String, String> options = new LinkedHashMap<>();
+	private RefFilter refFilter = new RefFilter();
+	private final List<File> combineDirectories = new ArrayList<>();
+
+	private MergeJob() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if an argument is invalid, with a message for the user
+	 */
+	static MergeJob parse(List<String> args) {
+		MergeJob job = new MergeJob();
+		// Repeatable, so not in options: "include" or "exclude" and the value
+		List<String[]> refRules = new ArrayList<>();
+
+		for (String arg : args) {
+			Matcher optionMatcher = OPTION.matcher(arg);
+			Matcher matcher = REPO_AND_DIR.matcher(arg);
+			if (optionMatcher.matches() && isRefRule(optionMatcher.group(1))) {
+				refRules.add(new String[] { optionMatcher.group(1), optionMatcher.group(2) });
+			} else if (optionMatcher.matches() && optionMatcher.group(1).equals("combine")) {
+				String directory = optionMatcher.group(2);
+				if (directory == null || directory.isEmpty()) {
+					throw new IllegalArgumentException(
+							"option '--combine' needs the output directory of a shard");
+				}
+				job.combineDirectories.add(new File(directory));
+			} else if (optionMatcher.matches()) {
+				String name = optionMatcher.group(1);
+				String value = optionMatcher.group(2);
+				checkOption(name, value);
+				job.options.put(name, value);
+			} else if (matcher.matches()) {
+				String repositoryUrl = matcher.group(1);
+				String directory = matcher.group(2);
+				try {
+					job.subtreeConfigs.add(new SubtreeConfig(directory, new URIish(repositoryUrl)));
+				} catch (URISyntaxException e) {
+					throw new IllegalArgumentException("invalid repository URL '" + repositoryUrl
+							+ "': " + e.getMessage(), e);
+				}
+			} else {
+				throw new IllegalArgumentException("invalid argument '" + arg
+						+ "', expected '<repository_url>:<target_directory>'");
+			}
+		}
+
+		if (job.subtreeConfigs.isEmpty()) {
+			throw new IllegalArgumentException("no repositories, expected "
+					+ "'<repository_url>:<target_directory>...'");
+		}
+		// Also checked by RepoMerger, but this way it's a usage error
+		Set<String> remoteNames = new HashSet<>();
+		for (SubtreeConfig config : job.subtreeConfigs) {
+			if (!remoteNames.add(config.getRemoteName())) {
+				throw new IllegalArgumentException("multiple repositories have the name '"
+						+ config.getRemoteName() + "', their refs would overwrite each other");
+			}
+		}
+		String fastImport = job.getFastImport();
+		if (job.options.containsKey("fast-import") && (fastImport == null || fastImport.isEmpty())) {
+			throw new IllegalArgumentException(
+					"option '--fast-import' needs a file name or - for stdout");
+		}
+		if (fastImport != null && job.isIncremental()) {
+			throw new IllegalArgumentException(
+					"option '--fast-import' can't be combined with '--incremental'");
+		}
+		String output = job.options.get("output");
+		if (job.options.containsKey("output") && (output == null || output.isEmpty())) {
+			throw new IllegalArgumentException("option '--output' needs a directory");
+		}
+		String mirrorCache = job.options.get("mirror-cache");
+		if (job.options.containsKey("mirror-cache")
+				&& (mirrorCache == null || mirrorCache.isEmpty())) {
+			throw new IllegalArgumentException("option '--mirror-cache' needs a directory");
+		}
+		if (job.isCombine()) {
+			for (String option : new String[] { "shard", "plan", "fast-import" }) {
+				if (job.options.containsKey(option)) {
+					throw new IllegalArgumentException(
+							"option '--combine' can't be combined with '--" + option + "'");
+				}
+			}
+		}
+		job.refFilter = createRefFilter(refRules, job.subtreeConfigs);
+		return job;
+	}
+
+	List<SubtreeConfig> getSubtreeConfigs() {
+		return Collections.unmodifiableList(subtreeConfigs);
+	}
+
+	boolean isIncremental() {
+		return options.containsKey("incremental");
+	}
+
+	boolean isBare() {
+		return options.containsKey("bare");
+	}
+
+	/**
+	 * @return whether to only plan the merge from the advertised refs, see
+	 *         {@link RepoMerger#plan()}
+	 */
+	boolean isPlan() {
+		return options.containsKey("plan");
+	}
+
+	/**
+	 * @return whether to combine the outputs of shards instead of merging, see
+	 *         {@link RepoMerger#combine(List)}
+	 */
+	boolean isCombine() {
+		return !combineDirectories.isEmpty();
+	}
+
+	/**
+	 * @return the output directories of the shards to combine
+	 */
+	List<File> getCombineDirectories() {
+		return Collections.unmodifiableList(combineDirectories);
+	}
+
+	/**
+	 * @return the file to write the fast-import stream to, "-" for stdout,
+	 *         null if the merge commits should be created
+	 */
+	String getFastImport() {
+		return options.get("fast-import");
+	}
+
+	/**
+	 * @return the output directory, relative to the working directory unless
+	 *         an absolute one was passed
+	 */
+	File getOutputDirectory() {
+		String output = options.get("output");
+		if (output != null) {
+			return new File(output);
+		}
+		return new File(isBare() ? "merged-repo.git" : "merged-repo");
+	}
+
+	/**
+	 * @return whether remote repositories are fetched through a mirror cache
+	 */
+	boolean hasMirrorCache() {
+		return options.containsKey("mirror-cache");
+	}
+
+	/**
+	 * Sets the options of the job on the merger, and the defaults for the
+	 * options that the job doesn't have (the merger may have been used for a
+	 * previous job). The fast-import output is not set.
+	 */
+	void configure(RepoMerger merger) {
+		merger.setFetchThreads(getNumber("fetch-threads", RepoMerger.DEFAULT_FETCH_THREADS));
+		merger.setFetchRetries(getNumber("fetch-retries", RepoMerger.DEFAULT_FETCH_RETRIES));
+		merger.setMergeThreads(getNumber("merge-threads", 1));
+		merger.setPackObjects(options.containsKey("pack-objects"));
+		merger.setObjectCacheSize(getNumber("object-cache", RepoMerger.DEFAULT_OBJECT_CACHE_MB));
+		merger.setValidateOverlaps(options.containsKey("validate"));
+		merger.setLinkLocalObjects(options.containsKey("link-local"));
+		merger.setRepack(options.containsKey("repack"));
+		merger.setReftable(options.containsKey("reftable"));
+		merger.setRepackThreads(getNumber("repack-threads", 0));
+		merger.setRepackMemory(getNumber("repack-memory", 0));
+		merger.setRefFilter(refFilter);
+		int[] shard = options.containsKey("shard") ? parseShard(options.get("shard"))
+				: new int[] { 0, 1 };
+		merger.setShard(shard[0], shard[1]);
+		merger.setMirrorCache(hasMirrorCache() ? new File(options.get("mirror-cache")) : null,
+				getNumber("mirror-cache-size", RepoMerger.DEFAULT_MIRROR_CACHE_MB));
+	}
+
+	private int getNumber(String name, int defaultValue) {
+		// Checked when parsing
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	private static void checkOption(String name, String value) {
+		switch (name) {
+		case "fetch-threads":
+		case "merge-threads":
+			parseNumber(name, value, 1);
+			break;
+		case "fetch-retries":
+		case "object-cache":
+		case "repack-threads":
+		case "repack-memory":
+		case "mirror-cache-size":
+			parseNumber(name, value, 0);
+			break;
+		case "shard":
+			parseShard(value);
+			break;
+		case "pack-objects":
+		case "validate":
+		case "link-local":
+		case "repack":
+		case "reftable":
+		case "incremental":
+		case "bare":
+		case "plan":
+		case "fast-import":
+		case "output":
+		case "mirror-cache":
+			break;
+		default:
+			throw new IllegalArgumentException("unknown option '--" + name + "'");
+		}
+	}
+
+	private static boolean isRefRule(String name) {
+		return name.equals("include") || name.equals("exclude");
+	}
+
+	private static RefFilter createRefFilter(List<String[]> refRules,
+			List<SubtreeConfig> subtreeConfigs) {
+		RefFilter refFilter = new RefFilter();
+		for (String[] refRule : refRules) {
+			String name = refRule[0];
+			String value = refRule[1];
+			if (value == null || value.isEmpty()) {
+				throw new IllegalArgumentException("option '--" + name + "' needs a pattern");
+			}
+			// A prefix of a repository's name makes the rule apply only to it
+			String remoteName = null;
+			String pattern = value;
+			int colon = value.indexOf(':');
+			if (colon != -1) {
+				for (SubtreeConfig config : subtreeConfigs) {
+					if (config.getRemoteName().equals(value.substring(0, colon))) {
+						remoteName = config.getRemoteName();
+						pattern = value.substring(colon + 1);
+					}
+				}
+			}
+			try {
+				if (name.equals("include")) {
+					refFilter.addInclude(remoteName, pattern);
+				} else {
+					refFilter.addExclude(remoteName, pattern);
+				}
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("invalid pattern for option '--" + name
+						+ "': " + e.getMessage(), e);
+			}
+		}
+		return refFilter;
+	}
+
+	/**
+	 * @return the index and the count of a shard like "1/4"
+	 */
+	private static int[] parseShard(String value) {
+		String[] parts = value != null ? value.split("/", -1) : new String[0];
+		if (parts.length == 2) {
+			try {
+				int index = Integer.parseInt(parts[0]);
+				int count = Integer.parseInt(parts[1]);
+				if (count >= 1 && index >= 0 && index < count) {
+					return new int[] { index, count };
+				}
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+		}
+		throw new IllegalArgumentException("invalid value for option '--shard', expected "
+				+ "<index>/<count> with an index from 0 to count - 1: " + value);
+	}
+
+	private static int parseNumber(String name, String value, int minimum) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= minimum) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException("invalid value for option '--" + name
+				+ "', expected a number of at least " + minimum + ": " + value);
+	}
+}
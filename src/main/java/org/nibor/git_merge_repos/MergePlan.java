@@ -0,0 +1,63 @@
+package org.nibor.git_merge_repos;
+
+/**
+ * What a run would merge, worked out from the refs that the repositories
+ * advertise (see {@link RepoMerger#plan()}). The refs themselves are reported
+ * to the listener of the merger.
+ */
+public class MergePlan {
+
+	private final int branchCount;
+	private final int tagCount;
+	private final int incompleteRefCount;
+	private final int unchangedRefCount;
+	private final int commitCombinationCount;
+
+	MergePlan(int branchCount, int tagCount, int incompleteRefCount, int unchangedRefCount,
+			int commitCombinationCount) {
+		this.branchCount = branchCount;
+		this.tagCount = tagCount;
+		this.incompleteRefCount = incompleteRefCount;
+		this.unchangedRefCount = unchangedRefCount;
+		this.commitCombinationCount = commitCombinationCount;
+	}
+
+	public int getBranchCount() {
+		return branchCount;
+	}
+
+	public int getTagCount() {
+		return tagCount;
+	}
+
+	/**
+	 * @return the number of refs that some of the repositories don't have
+	 */
+	public int getIncompleteRefCount() {
+		return incompleteRefCount;
+	}
+
+	/**
+	 * @return the number of refs that would not be merged again because they
+	 *         didn't change since the previous run into the output repository
+	 */
+	public int getUnchangedRefCount() {
+		return unchangedRefCount;
+	}
+
+	/**
+	 * @return the number of refs that would be merged
+	 */
+	public int getMergeCount() {
+		return branchCount + tagCount - unchangedRefCount;
+	}
+
+	/**
+	 * @return the number of distinct combinations of input commits among the
+	 *         refs that would be merged, which is how many trees would have to
+	 *         be merged (refs with the same commits share the merged tree)
+	 */
+	public int getCommitCombinationCount() {
+		return commitCombinationCount;
+	}
+}
@@ -0,0 +1,378 @@
+package org.nibor.git_merge_repos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs merges as jobs, submitted over HTTP on localhost. Saves the JVM startup
+ * and warm-up for each merge, and keeps the merger (with its open repository
+ * and merged tree cache) of an output directory for the next job that merges
+ * the same repositories into it, e.g. with <code>--incremental</code>.
+ * <p>
+ * Jobs run one after another. The API:
+ *
+ * <pre>
+ * POST /jobs        arguments like on the command-line, one per line; returns the job
+ * GET  /jobs        all jobs, in the order they were submitted
+ * GET  /jobs/&lt;id&gt;   one job, with the run report once it is done
+ * </pre>
+ *
+ * Relative output directories are in the working directory of the server.
+ * Only the last {@value #MAX_JOBS} jobs are kept, and the run report only
+ * for the last {@value #MAX_REPORTS} finished ones (the report has an entry
+ * per ref); older jobs only have their counters.
+ */
+public class MergeServer {
+
+	public static final int DEFAULT_PORT = 8123;
+
+	static final int MAX_JOBS = 1000;
+	static final int MAX_REPORTS = 10;
+	// Each keeps its repository open and its cache of merged trees
+	private static final int MAX_MERGERS = 8;
+
+	private final HttpServer httpServer;
+	private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicInteger nextJobId = new AtomicInteger(1);
+	private final Map<Integer, Job> jobs = new LinkedHashMap<>();
+
+	// Only used by the job thread, by output directory and repositories, the
+	// least recently used one is closed when there are too many
+	private final Map<String, RepoMerger> mergers = new LinkedHashMap<String, RepoMerger>(16,
+			0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RepoMerger> eldest) {
+			if (size() > MAX_MERGERS) {
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * @param port
+	 *            the port to listen on, 0 for any free one
+	 */
+	public MergeServer(int port) throws IOException {
+		httpServer = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/jobs", this::handle);
+	}
+
+	public void start() {
+		httpServer.start();
+	}
+
+	/**
+	 * Stops accepting jobs, the submitted ones still run.
+	 */
+	public void stop() {
+		httpServer.stop(0);
+		jobExecutor.shutdown();
+	}
+
+	public int getPort() {
+		return httpServer.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath().replaceFirst("/+$", "");
+			String method = exchange.getRequestMethod();
+			if (path.equals("/jobs") && method.equals("POST")) {
+				submit(exchange);
+			} else if (path.equals("/jobs") && method.equals("GET")) {
+				StringBuilder json = new StringBuilder("[");
+				for (Job job : getJobs()) {
+					json.append(json.length() == 1 ? "\n" : ",\n").append(job.toJson(false));
+				}
+				respond(exchange, 200, json.append("\n]\n").toString());
+			} else if (path.startsWith("/jobs/") && method.equals("GET")) {
+				Job job = getJob(path.substring("/jobs/".length()));
+				if (job == null) {
+					respondError(exchange, 404, "No such job: " + path);
+				} else {
+					respond(exchange, 200, job.toJson(true) + "\n");
+				}
+			} else {
+				respondError(exchange, 405, "Expected POST /jobs, GET /jobs or GET /jobs/<id>");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void submit(HttpExchange exchange) throws IOException {
+		List<String> args = new ArrayList<>();
+		for (String line : readBody(exchange).split("\n")) {
+			if (!line.trim().isEmpty()) {
+				args.add(line.trim());
+			}
+		}
+		MergeJob mergeJob;
+		try {
+			mergeJob = MergeJob.parse(args);
+		} catch (IllegalArgumentException e) {
+			respondError(exchange, 400, e.getMessage());
+			return;
+		}
+		if (mergeJob.isPlan()) {
+			respondError(exchange, 400, "option '--plan' is only supported on the command-line");
+			return;
+		}
+		if (mergeJob.isCombine()) {
+			respondError(exchange, 400,
+					"option '--combine' is only supported on the command-line");
+			return;
+		}
+		if ("-".equals(mergeJob.getFastImport())) {
+			respondError(exchange, 400, "option '--fast-import' needs a file name for a job");
+			return;
+		}
+		Job job = new Job(nextJobId.getAndIncrement(), args, mergeJob);
+		synchronized (jobs) {
+			jobs.put(job.id, job);
+		}
+		jobExecutor.submit(() -> run(job));
+		exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+		respond(exchange, 201, job.toJson(false) + "\n");
+	}
+
+	private void run(Job job) {
+		MergeJob mergeJob = job.mergeJob;
+		File outputDirectory = mergeJob.getOutputDirectory().getAbsoluteFile();
+		String mergerKey = getMergerKey(outputDirectory, mergeJob);
+		job.started(outputDirectory);
+		if (outputDirectory.exists() && !mergeJob.isIncremental()) {
+			job.failed(new IllegalStateException("Output directory already exists (remove it "
+					+ "or use --incremental to update it): " + outputDirectory));
+			trimJobs();
+			return;
+		}
+		OutputStream fastImportOutput = null;
+		try {
+			RepoMerger merger = mergers.get(mergerKey);
+			boolean reused = merger != null && outputDirectory.exists();
+			if (!reused) {
+				if (merger != null) {
+					// The output directory was deleted since
+					merger.close();
+				}
+				merger = new RepoMerger(outputDirectory, mergeJob.getSubtreeConfigs(),
+						mergeJob.isBare());
+				mergers.put(mergerKey, merger);
+			}
+			mergeJob.configure(merger);
+			if (mergeJob.getFastImport() != null) {
+				fastImportOutput = new FileOutputStream(mergeJob.getFastImport());
+			}
+			merger.setFastImportOutput(fastImportOutput);
+			merger.run();
+			job.succeeded(merger, reused);
+		} catch (Exception | Error e) {
+			// The cache may refer to objects that were never written
+			RepoMerger merger = mergers.remove(mergerKey);
+			if (merger != null) {
+				merger.close();
+			}
+			job.failed(e);
+		} finally {
+			if (fastImportOutput != null) {
+				try {
+					fastImportOutput.close();
+				} catch (IOException e) {
+					job.failed(e);
+				}
+			}
+			trimJobs();
+		}
+	}
+
+	/**
+	 * Drops the reports of all but the last finished jobs, and the oldest
+	 * finished jobs if there are too many.
+	 */
+	private void trimJobs() {
+		synchronized (jobs) {
+			List<Job> finished = new ArrayList<>();
+			for (Job job : jobs.values()) {
+				if (job.isFinished()) {
+					finished.add(job);
+				}
+			}
+			for (int i = 0; i < finished.size() - MAX_REPORTS; i++) {
+				finished.get(i).dropReport();
+			}
+			for (int i = 0; i < finished.size() && jobs.size() > MAX_JOBS; i++) {
+				jobs.remove(finished.get(i).id);
+			}
+		}
+	}
+
+	private static String getMergerKey(File outputDirectory, MergeJob mergeJob) {
+		StringBuilder key = new StringBuilder(outputDirectory.getPath());
+		key.append(mergeJob.isBare() ? "\tbare" : "\tnon-bare");
+		for (SubtreeConfig config : mergeJob.getSubtreeConfigs()) {
+			key.append('\t').append(config.getFetchUri()).append(':')
+					.append(config.getSubtreeDirectory());
+		}
+		return key.toString();
+	}
+
+	private List<Job> getJobs() {
+		synchronized (jobs) {
+			return new ArrayList<>(jobs.values());
+		}
+	}
+
+	private Job getJob(String id) {
+		try {
+			synchronized (jobs) {
+				return jobs.get(Integer.parseInt(id));
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void respondError(HttpExchange exchange, int status, String message)
+			throws IOException {
+		respond(exchange, status, "{\"error\": " + MergeStatistics.quote(message) + "}\n");
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json)
+			throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * A submitted job and its status, updated by the job thread and read by
+	 * the request threads.
+	 */
+	private static class Job {
+		private final int id;
+		private final List<String> args;
+		private final MergeJob mergeJob;
+		private final long submittedMillis = System.currentTimeMillis();
+
+		private String state = "queued";
+		private File outputDirectory;
+		private long startedMillis;
+		private long finishedMillis;
+		private String error;
+		private boolean reusedMerger;
+		private int mergedRefs;
+		private int incompleteRefs;
+		private int unchangedRefs;
+		private String report;
+
+		Job(int id, List<String> args, MergeJob mergeJob) {
+			this.id = id;
+			this.args = args;
+			this.mergeJob = mergeJob;
+		}
+
+		synchronized void started(File outputDirectory) {
+			this.state = "running";
+			this.outputDirectory = outputDirectory;
+			this.startedMillis = System.currentTimeMillis();
+		}
+
+		synchronized void succeeded(RepoMerger merger, boolean reused) throws IOException {
+			StringWriter writer = new StringWriter();
+			merger.getStatistics().writeReport(writer);
+			this.report = writer.toString().trim();
+			this.state = "succeeded";
+			this.finishedMillis = System.currentTimeMillis();
+			this.reusedMerger = reused;
+			this.mergedRefs = merger.getMergedRefCount();
+			this.incompleteRefs = merger.getIncompleteRefCount();
+			this.unchangedRefs = merger.getUnchangedRefCount();
+		}
+
+		synchronized boolean isFinished() {
+			return finishedMillis != 0;
+		}
+
+		synchronized void dropReport() {
+			this.report = null;
+		}
+
+		synchronized void failed(Throwable e) {
+			this.state = "failed";
+			this.finishedMillis = System.currentTimeMillis();
+			this.error = e.toString();
+		}
+
+		synchronized String toJson(boolean withReport) {
+			StringBuilder json = new StringBuilder("{");
+			json.append("\"id\": ").append(id);
+			json.append(", \"state\": ").append(MergeStatistics.quote(state));
+			json.append(", \"args\": [");
+			for (int i = 0; i < args.size(); i++) {
+				json.append(i == 0 ? "" : ", ").append(MergeStatistics.quote(args.get(i)));
+			}
+			json.append("]");
+			if (outputDirectory != null) {
+				json.append(", \"outputDirectory\": ")
+						.append(MergeStatistics.quote(outputDirectory.getPath()));
+			}
+			json.append(", \"submitted\": ").append(submittedMillis);
+			if (startedMillis != 0) {
+				json.append(", \"queuedMillis\": ").append(startedMillis - submittedMillis);
+			}
+			if (finishedMillis != 0) {
+				json.append(", \"runMillis\": ").append(finishedMillis - startedMillis);
+			}
+			if (error != null) {
+				json.append(", \"error\": ").append(MergeStatistics.quote(error));
+			}
+			if (state.equals("succeeded")) {
+				json.append(", \"reusedMerger\": ").append(reusedMerger);
+				json.append(", \"mergedRefs\": ").append(mergedRefs);
+				json.append(", \"incompleteRefs\": ").append(incompleteRefs);
+				json.append(", \"unchangedRefs\": ").append(unchangedRefs);
+				if (withReport && report != null) {
+					json.append(", \"report\": ").append(report);
+				}
+			}
+			return json.append("}").toString();
+		}
+	}
+}
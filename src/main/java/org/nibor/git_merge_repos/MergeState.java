@@ -0,0 +1,252 @@
+package org.nibor.git_merge_repos;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * The state of a previous run: For each merged ref, the IDs of the refs in the
+ * input repositories and the object that the merged ref was pointed to. Used
+ * for only merging refs that changed since then.
+ * <p>
+ * The state is stored as a text file, with one line per input repository and
+ * one per ref, fields separated by tabs:
+ *
+ * <pre>
+ * config	&lt;remote name&gt;	&lt;subtree directory&gt;
+ * shard	&lt;index&gt;	&lt;count&gt;
+ * ref	&lt;ref name&gt;	&lt;merged object id&gt;	&lt;id in first repository or -&gt;	...
+ * </pre>
+ *
+ * The shard line is only there if the run merged a shard of the refs, see
+ * {@link RepoMerger#setShard(int, int)}.
+ */
+class MergeState {
+
+	private static final String MISSING = "-";
+
+	private final List<String> configLines;
+	private final Map<String, Entry> entries;
+	private final int shardIndex;
+	private final int shardCount;
+
+	private MergeState(List<String> configLines, Map<String, Entry> entries, int shardIndex,
+			int shardCount) {
+		this.configLines = configLines;
+		this.entries = entries;
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @return a state without any merged refs
+	 */
+	static MergeState empty() {
+		return new MergeState(Collections.emptyList(), new LinkedHashMap<>(), 0, 1);
+	}
+
+	/**
+	 * @return the state read from the file, or an empty state if the file
+	 *         does not exist or was written for different subtree configs
+	 */
+	static MergeState read(File file, List<SubtreeConfig> subtreeConfigs) throws IOException {
+		MergeState state = read(file);
+		if (!state.isFor(subtreeConfigs)) {
+			// Different repositories or directories, nothing can be reused
+			return empty();
+		}
+		return state;
+	}
+
+	/**
+	 * @return the state read from the file, or an empty state if the file
+	 *         does not exist
+	 */
+	static MergeState read(File file) throws IOException {
+		if (!file.exists()) {
+			return empty();
+		}
+
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		List<String> configLines = new ArrayList<>();
+		int shardIndex = 0;
+		int shardCount = 1;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields[0].equals("config")) {
+					configLines.add(line);
+				} else if (fields[0].equals("shard")) {
+					shardIndex = Integer.parseInt(fields[1]);
+					shardCount = Integer.parseInt(fields[2]);
+				} else if (fields[0].equals("ref")) {
+					ObjectId[] sourceIds = new ObjectId[fields.length - 3];
+					for (int i = 0; i < sourceIds.length; i++) {
+						String sourceId = fields[i + 3];
+						sourceIds[i] = sourceId.equals(MISSING) ? null
+								: ObjectId.fromString(sourceId);
+					}
+					entries.put(fields[1],
+							new Entry(fields[1], ObjectId.fromString(fields[2]), sourceIds));
+				}
+			}
+		}
+
+		return new MergeState(configLines, entries, shardIndex, shardCount);
+	}
+
+	/**
+	 * Starts writing a new state, which replaces the file only once it is
+	 * committed. The entries are written as they are added, so that they
+	 * don't have to be kept until the end of the run.
+	 *
+	 * @param shardCount
+	 *            the number of shards of the run, 1 if it merged all refs
+	 */
+	static Writer write(File file, List<SubtreeConfig> subtreeConfigs, int shardIndex,
+			int shardCount) throws IOException {
+		Writer writer = new Writer(file);
+		try {
+			for (String configLine : getConfigLines(subtreeConfigs)) {
+				writer.writer.write(configLine);
+				writer.writer.write('\n');
+			}
+			if (shardCount > 1) {
+				writer.writer.write("shard\t" + shardIndex + "\t" + shardCount + "\n");
+			}
+			return writer;
+		} catch (IOException | RuntimeException e) {
+			writer.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the entry of the ref, or null if the ref was not merged before
+	 */
+	Entry get(String refName) {
+		return entries.get(refName);
+	}
+
+	Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * @return whether the state was written for the subtree configs
+	 */
+	boolean isFor(List<SubtreeConfig> subtreeConfigs) {
+		return configLines.equals(getConfigLines(subtreeConfigs));
+	}
+
+	int getShardIndex() {
+		return shardIndex;
+	}
+
+	int getShardCount() {
+		return shardCount;
+	}
+
+	private static List<String> getConfigLines(List<SubtreeConfig> subtreeConfigs) {
+		List<String> lines = new ArrayList<>();
+		for (SubtreeConfig config : subtreeConfigs) {
+			lines.add("config\t" + config.getRemoteName() + "\t" + config.getSubtreeDirectory());
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes a state to a temporary file next to the state file, see
+	 * {@link MergeState#write(File, List, int, int)}. Closing it without
+	 * committing deletes the temporary file and keeps the previous state.
+	 */
+	static class Writer implements AutoCloseable {
+		private final File file;
+		private final File tempFile;
+		private final BufferedWriter writer;
+		private boolean committed = false;
+
+		private Writer(File file) throws IOException {
+			this.file = file;
+			this.tempFile = new File(file.getPath() + ".tmp");
+			this.writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8);
+		}
+
+		void add(Entry entry) throws IOException {
+			writer.write("ref\t");
+			writer.write(entry.refName);
+			writer.write('\t');
+			writer.write(entry.mergedId.name());
+			for (ObjectId sourceId : entry.sourceIds) {
+				writer.write('\t');
+				writer.write(sourceId != null ? sourceId.name() : MISSING);
+			}
+			writer.write('\n');
+		}
+
+		/**
+		 * Replaces the state file with the written state.
+		 */
+		void commit() throws IOException {
+			writer.close();
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				writer.close();
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		}
+	}
+
+	static class Entry {
+		private final String refName;
+		private final ObjectId mergedId;
+		private final ObjectId[] sourceIds;
+
+		/**
+		 * @param sourceIds
+		 *            the IDs of the ref in the input repositories (in the order
+		 *            of the subtree configs), null where it is missing
+		 */
+		Entry(String refName, ObjectId mergedId, ObjectId[] sourceIds) {
+			this.refName = refName;
+			this.mergedId = mergedId;
+			this.sourceIds = sourceIds;
+		}
+
+		String getRefName() {
+			return refName;
+		}
+
+		ObjectId getMergedId() {
+			return mergedId;
+		}
+
+		/**
+		 * @return whether the ref was merged from the same input refs
+		 */
+		boolean hasSourceIds(ObjectId[] otherSourceIds) {
+			return Arrays.equals(sourceIds, otherSourceIds);
+		}
+	}
+}
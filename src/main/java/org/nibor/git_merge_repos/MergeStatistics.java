@@ -0,0 +1,325 @@
+package org.nibor.git_merge_repos;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of the phases of a run and of the merge of each ref, and counters of
+ * the work done. Safe for use by multiple threads.
+ * <p>
+ * Can be written as a JSON report, for comparing runs with each other.
+ */
+public class MergeStatistics {
+
+	private final Map<String, Long> phaseMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+	private final List<RefTiming> refTimings = Collections.synchronizedList(new ArrayList<>());
+
+	private final AtomicLong treesWalked = new AtomicLong();
+	private final AtomicLong entriesCopied = new AtomicLong();
+	private final AtomicLong objectsInserted = new AtomicLong();
+	private final AtomicLong bytesFetched = new AtomicLong();
+	private final AtomicLong refsUpdated = new AtomicLong();
+	private final AtomicLong mirrorBytesFetched = new AtomicLong();
+	private final AtomicLong mirrorsEvicted = new AtomicLong();
+	private final AtomicLong objectCacheHits = new AtomicLong();
+	private final AtomicLong objectCacheMisses = new AtomicLong();
+	private final AtomicLong objectCacheEvictions = new AtomicLong();
+	private final AtomicLong objectCachePeakBytes = new AtomicLong();
+	private final AtomicLong repackBytesBefore = new AtomicLong(-1);
+	private final AtomicLong repackBytesAfter = new AtomicLong(-1);
+
+	/**
+	 * @return the duration of each phase of the run in milliseconds, in the
+	 *         order they ran
+	 */
+	public Map<String, Long> getPhaseMillis() {
+		synchronized (phaseMillis) {
+			return new LinkedHashMap<>(phaseMillis);
+		}
+	}
+
+	/**
+	 * @return the duration of the merge of each ref, in the order they
+	 *         finished
+	 */
+	public List<RefTiming> getRefTimings() {
+		synchronized (refTimings) {
+			return new ArrayList<>(refTimings);
+		}
+	}
+
+	/**
+	 * @return the number of trees of the input repositories whose entries
+	 *         were read for merging
+	 */
+	public long getTreesWalked() {
+		return treesWalked.get();
+	}
+
+	/**
+	 * @return the number of entries of input trees that were copied into
+	 *         merged trees
+	 */
+	public long getEntriesCopied() {
+		return entriesCopied.get();
+	}
+
+	/**
+	 * @return the number of trees, commits and tags that were inserted
+	 */
+	public long getObjectsInserted() {
+		return objectsInserted.get();
+	}
+
+	/**
+	 * @return the number of bytes that the pack files of the output repository
+	 *         grew by when fetching
+	 */
+	public long getBytesFetched() {
+		return bytesFetched.get();
+	}
+
+	/**
+	 * @return the number of refs that were created, updated or deleted
+	 */
+	public long getRefsUpdated() {
+		return refsUpdated.get();
+	}
+
+	/**
+	 * @return the number of bytes that the mirrors of the mirror cache grew by
+	 *         when updating them from the remote repositories
+	 */
+	public long getMirrorBytesFetched() {
+		return mirrorBytesFetched.get();
+	}
+
+	/**
+	 * @return the number of least recently used mirrors that were deleted
+	 *         from the mirror cache
+	 */
+	public long getMirrorsEvicted() {
+		return mirrorsEvicted.get();
+	}
+
+	/**
+	 * @return the number of times a commit or tag was already parsed by the
+	 *         thread that needed it
+	 */
+	public long getObjectCacheHits() {
+		return objectCacheHits.get();
+	}
+
+	/**
+	 * @return the number of commits and tags that had to be parsed
+	 */
+	public long getObjectCacheMisses() {
+		return objectCacheMisses.get();
+	}
+
+	/**
+	 * @return the number of times the parsed objects of a thread were dropped
+	 *         because they reached the maximum size
+	 */
+	public long getObjectCacheEvictions() {
+		return objectCacheEvictions.get();
+	}
+
+	/**
+	 * @return the most memory that the parsed objects of one thread used
+	 *         (estimated)
+	 */
+	public long getObjectCachePeakBytes() {
+		return objectCachePeakBytes.get();
+	}
+
+	/**
+	 * @return the size of the objects of the output repository (packed and
+	 *         loose, without linked repositories) before repacking, -1 if it
+	 *         was not repacked
+	 */
+	public long getRepackBytesBefore() {
+		return repackBytesBefore.get();
+	}
+
+	/**
+	 * @return the size of the objects of the output repository after
+	 *         repacking, -1 if it was not repacked
+	 */
+	public long getRepackBytesAfter() {
+		return repackBytesAfter.get();
+	}
+
+	/**
+	 * Records the end of a phase.
+	 *
+	 * @param startNanos
+	 *            the {@link System#nanoTime()} when the phase started
+	 */
+	void addPhase(String name, long startNanos) {
+		phaseMillis.merge(name, elapsedMillis(startNanos), Long::sum);
+	}
+
+	void addRefTiming(String refType, String refName, long startNanos) {
+		refTimings.add(new RefTiming(refType, refName, elapsedMillis(startNanos)));
+	}
+
+	void addTreesWalked(long count) {
+		treesWalked.addAndGet(count);
+	}
+
+	void addEntriesCopied(long count) {
+		entriesCopied.addAndGet(count);
+	}
+
+	void addObjectsInserted(long count) {
+		objectsInserted.addAndGet(count);
+	}
+
+	void addBytesFetched(long count) {
+		bytesFetched.addAndGet(count);
+	}
+
+	void addRefsUpdated(long count) {
+		refsUpdated.addAndGet(count);
+	}
+
+	void addMirrorBytesFetched(long count) {
+		mirrorBytesFetched.addAndGet(count);
+	}
+
+	void addMirrorsEvicted(long count) {
+		mirrorsEvicted.addAndGet(count);
+	}
+
+	void addObjectCacheHits(long count) {
+		objectCacheHits.addAndGet(count);
+	}
+
+	void addObjectCacheMisses(long count) {
+		objectCacheMisses.addAndGet(count);
+	}
+
+	void addObjectCacheEvictions(long count) {
+		objectCacheEvictions.addAndGet(count);
+	}
+
+	void updateObjectCachePeakBytes(long bytes) {
+		objectCachePeakBytes.accumulateAndGet(bytes, Math::max);
+	}
+
+	void setRepackSizes(long bytesBefore, long bytesAfter) {
+		repackBytesBefore.set(bytesBefore);
+		repackBytesAfter.set(bytesAfter);
+	}
+
+	/**
+	 * Writes the statistics as a JSON object to the file.
+	 */
+	public void writeReport(File file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			writeReport(writer);
+		}
+	}
+
+	void writeReport(Writer writer) throws IOException {
+		writer.write("{\n  \"phases\": {");
+		String separator = "\n";
+		for (Map.Entry<String, Long> phase : getPhaseMillis().entrySet()) {
+			writer.write(separator + "    " + quote(phase.getKey()) + ": " + phase.getValue());
+			separator = ",\n";
+		}
+		writer.write("\n  },\n");
+		writer.write("  \"counters\": {\n");
+		writer.write("    \"treesWalked\": " + getTreesWalked() + ",\n");
+		writer.write("    \"entriesCopied\": " + getEntriesCopied() + ",\n");
+		writer.write("    \"objectsInserted\": " + getObjectsInserted() + ",\n");
+		writer.write("    \"bytesFetched\": " + getBytesFetched() + ",\n");
+		writer.write("    \"refsUpdated\": " + getRefsUpdated() + ",\n");
+		writer.write("    \"mirrorBytesFetched\": " + getMirrorBytesFetched() + ",\n");
+		writer.write("    \"mirrorsEvicted\": " + getMirrorsEvicted() + ",\n");
+		writer.write("    \"objectCacheHits\": " + getObjectCacheHits() + ",\n");
+		writer.write("    \"objectCacheMisses\": " + getObjectCacheMisses() + ",\n");
+		writer.write("    \"objectCacheEvictions\": " + getObjectCacheEvictions() + ",\n");
+		writer.write("    \"objectCachePeakBytes\": " + getObjectCachePeakBytes() + ",\n");
+		writer.write("    \"repackBytesBefore\": " + getRepackBytesBefore() + ",\n");
+		writer.write("    \"repackBytesAfter\": " + getRepackBytesAfter() + "\n");
+		writer.write("  },\n");
+		// Sum per ref type, merges of different types can run in parallel so
+		// the merge phase can't be split up
+		Map<String, Long> refTypeMillis = new LinkedHashMap<>();
+		for (RefTiming refTiming : getRefTimings()) {
+			refTypeMillis.merge(refTiming.getRefType(), refTiming.getMillis(), Long::sum);
+		}
+		writer.write("  \"refTypes\": {");
+		separator = "\n";
+		for (Map.Entry<String, Long> refType : refTypeMillis.entrySet()) {
+			writer.write(separator + "    " + quote(refType.getKey()) + ": " + refType.getValue());
+			separator = ",\n";
+		}
+		writer.write("\n  },\n");
+		writer.write("  \"refs\": [");
+		separator = "\n";
+		for (RefTiming refTiming : getRefTimings()) {
+			writer.write(separator + "    {\"type\": " + quote(refTiming.getRefType())
+					+ ", \"name\": " + quote(refTiming.getRefName()) + ", \"millis\": "
+					+ refTiming.getMillis() + "}");
+			separator = ",\n";
+		}
+		writer.write("\n  ]\n}\n");
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	public static class RefTiming {
+		private final String refType;
+		private final String refName;
+		private final long millis;
+
+		RefTiming(String refType, String refName, long millis) {
+			this.refType = refType;
+			this.refName = refName;
+			this.millis = millis;
+		}
+
+		public String getRefType() {
+			return refType;
+		}
+
+		public String getRefName() {
+			return refName;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+	}
+}
@@ -1,24 +1,36 @@
 package org.nibor.git_merge_repos;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * Info about a merged branch/tag and in which input repositories it was
  * present/missing.
+ * <p>
+ * The repositories are identified by their index in the subtree configs,
+ * which all merged refs share, so each ref only needs a bit per repository.
  */
 public class MergedRef {
 
 	private final String refType;
 	private final String refName;
-	private final Collection<SubtreeConfig> configsWithRef;
-	private final Collection<SubtreeConfig> configsWithoutRef;
+	private final List<SubtreeConfig> subtreeConfigs;
+	private final BitSet configsWithRef;
 
-	public MergedRef(String refType, String refName, Collection<SubtreeConfig> configsWithRef,
-			Collection<SubtreeConfig> configsWithoutRef) {
+	/**
+	 * @param subtreeConfigs
+	 *            all subtree configs of the merge
+	 * @param configsWithRef
+	 *            the indexes of the configs whose repositories have the ref,
+	 *            must not be changed afterwards
+	 */
+	public MergedRef(String refType, String refName, List<SubtreeConfig> subtreeConfigs,
+			BitSet configsWithRef) {
 		this.refType = refType;
 		this.refName = refName;
+		this.subtreeConfigs = subtreeConfigs;
 		this.configsWithRef = configsWithRef;
-		this.configsWithoutRef = configsWithoutRef;
 	}
 
 	public String getRefType() {
@@ -29,8 +41,19 @@ public class MergedRef {
 		return refName;
 	}
 
-	public Collection<SubtreeConfig> getConfigsWithoutRef() {
-		return configsWithoutRef;
+	/**
+	 * @return whether all repositories have the ref
+	 */
+	public boolean isComplete() {
+		return configsWithRef.cardinality() == subtreeConfigs.size();
+	}
+
+	public List<SubtreeConfig> getConfigsWithRef() {
+		return getConfigs(true);
+	}
+
+	public List<SubtreeConfig> getConfigsWithoutRef() {
+		return getConfigs(false);
 	}
 
 	public String getMessage() {
@@ -39,20 +62,31 @@ public class MergedRef {
 				.append("' from multiple repositories");
 		messageBuilder.append("\n\n");
 		messageBuilder.append("Repositories:");
-		appendRepositoryNames(messageBuilder, configsWithRef);
-		if (!configsWithoutRef.isEmpty()) {
+		appendRepositoryNames(messageBuilder, true);
+		if (!isComplete()) {
 			messageBuilder.append("\n\nRepositories without this ").append(refType).append(":");
-			appendRepositoryNames(messageBuilder, configsWithoutRef);
+			appendRepositoryNames(messageBuilder, false);
 		}
 		messageBuilder.append("\n");
 		return messageBuilder.toString();
 	}
 
-	private static void appendRepositoryNames(StringBuilder builder,
-			Collection<SubtreeConfig> configs) {
-		for (SubtreeConfig config : configs) {
-			builder.append("\n\t");
-			builder.append(config.getRemoteName());
+	private List<SubtreeConfig> getConfigs(boolean withRef) {
+		List<SubtreeConfig> configs = new ArrayList<>();
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			if (configsWithRef.get(i) == withRef) {
+				configs.add(subtreeConfigs.get(i));
+			}
+		}
+		return configs;
+	}
+
+	private void appendRepositoryNames(StringBuilder builder, boolean withRef) {
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			if (configsWithRef.get(i) == withRef) {
+				builder.append("\n\t");
+				builder.append(subtreeConfigs.get(i).getRemoteName());
+			}
 		}
 	}
 }
@@ -0,0 +1,293 @@
+package org.nibor.git_merge_repos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * A directory of bare mirrors of remote repositories that is kept across
+ * runs, so that a run only transfers the objects that are new since the last
+ * one and then fetches from the mirror locally.
+ * <p>
+ * A mirror is named after its fetch URI (the humanish name and a hash of the
+ * URI). Next to each mirror is a lock file, which is locked while the mirror
+ * is updated and fetched from, so that concurrent runs (in the same or other
+ * processes) can share the cache. The modification time of the lock file is
+ * the last use of the mirror; when the mirrors together are larger than the
+ * limit, the least recently used ones are deleted.
+ */
+class MirrorCache {
+
+	private static final String MIRROR_SUFFIX = ".git";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final int HASH_LENGTH = 12;
+
+	// File locks are held by the whole process, these keep its threads apart
+	private static final Map<String, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+	private final File directory;
+	private final long maxBytes;
+
+	/**
+	 * @param maxBytes
+	 *            the size of all mirrors above which the least recently used
+	 *            ones are deleted
+	 */
+	MirrorCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Locks the mirror of the URI (waiting for other runs that use it),
+	 * creates it if it doesn't exist yet, and fetches all branches and tags
+	 * into it. Refs that no longer exist in the repository are deleted from
+	 * the mirror.
+	 *
+	 * @return the mirror, which stays locked until it is closed
+	 */
+	Mirror update(URIish uri) throws IOException, GitAPIException {
+		Mirror mirror = lock(getMirrorName(uri), true);
+		try {
+			mirror.update(uri);
+			return mirror;
+		} catch (IOException | GitAPIException | RuntimeException e) {
+			mirror.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used mirrors until all mirrors together are
+	 * no larger than the limit. Mirrors that are in use by other runs are
+	 * skipped, and so are the passed ones, so the cache can stay above the
+	 * limit if they need more.
+	 *
+	 * @param keep
+	 *            the git directories of the mirrors that must not be deleted,
+	 *            e.g. the ones that the current run uses
+	 * @return the number of deleted mirrors
+	 */
+	int evict(Collection<File> keep) throws IOException {
+		File[] files = directory.listFiles(
+				file -> file.isDirectory() && file.getName().endsWith(MIRROR_SUFFIX));
+		if (files == null) {
+			return 0;
+		}
+		List<File> gitDirs = new ArrayList<>();
+		long totalBytes = 0;
+		Map<File, Long> sizes = new HashMap<>();
+		for (File gitDir : files) {
+			long size = getSize(gitDir.toPath());
+			sizes.put(gitDir, size);
+			totalBytes += size;
+			gitDirs.add(gitDir);
+		}
+		gitDirs.sort(Comparator.comparingLong(gitDir -> getLockFile(gitDir).lastModified()));
+
+		int evicted = 0;
+		for (File gitDir : gitDirs) {
+			if (totalBytes <= maxBytes) {
+				break;
+			}
+			if (keep.contains(gitDir.getAbsoluteFile())) {
+				continue;
+			}
+			String name = gitDir.getName();
+			Mirror mirror = lock(name.substring(0, name.length() - MIRROR_SUFFIX.length()),
+					false);
+			if (mirror == null) {
+				continue;
+			}
+			try {
+				// The lock file stays, others may already wait for it
+				FileUtils.delete(gitDir, FileUtils.RECURSIVE | FileUtils.RETRY
+						| FileUtils.SKIP_MISSING);
+			} finally {
+				mirror.close();
+			}
+			totalBytes -= sizes.get(gitDir);
+			evicted++;
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the name of the mirror, e.g. repo-one-3f2a9c01b6d4 for
+	 *         https://example.org/repo-one.git
+	 */
+	private static String getMirrorName(URIish uri) {
+		// Without the password, so that changing it keeps the mirror
+		byte[] key = uri.setPass(null).toString().getBytes(StandardCharsets.UTF_8);
+		String hash = ObjectId.fromRaw(Constants.newMessageDigest().digest(key)).name();
+		return uri.getHumanishName() + "-" + hash.substring(0, HASH_LENGTH);
+	}
+
+	/**
+	 * @param wait
+	 *            whether to wait for the lock if another run holds it
+	 * @return the locked mirror, or null if not waiting and it is in use
+	 */
+	private Mirror lock(String name, boolean wait) throws IOException {
+		File gitDir = new File(directory, name + MIRROR_SUFFIX).getAbsoluteFile();
+		File lockFile = getLockFile(gitDir);
+		ReentrantLock localLock = LOCAL_LOCKS.computeIfAbsent(lockFile.getPath(),
+				path -> new ReentrantLock());
+		if (wait) {
+			localLock.lock();
+		} else if (!localLock.tryLock()) {
+			return null;
+		}
+		FileChannel channel = null;
+		try {
+			directory.mkdirs();
+			channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			FileLock fileLock = wait ? channel.lock() : channel.tryLock();
+			if (fileLock == null) {
+				channel.close();
+				localLock.unlock();
+				return null;
+			}
+			return new Mirror(gitDir, lockFile, channel, localLock);
+		} catch (IOException | OverlappingFileLockException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			localLock.unlock();
+			throw e;
+		}
+	}
+
+	private static File getLockFile(File gitDir) {
+		String name = gitDir.getName();
+		return new File(gitDir.getParentFile(),
+				name.substring(0, name.length() - MIRROR_SUFFIX.length()) + LOCK_SUFFIX);
+	}
+
+	private static long getSize(Path path) throws IOException {
+		long[] size = { 0 };
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				size[0] += attributes.size();
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// Missing (e.g. not created yet) or deleted while walking
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size[0];
+	}
+
+	/**
+	 * A locked mirror, see {@link MirrorCache#update(URIish)}.
+	 */
+	static class Mirror implements AutoCloseable {
+		private final File gitDir;
+		private final File lockFile;
+		private final FileChannel channel;
+		private final ReentrantLock localLock;
+		private long bytesFetched = 0;
+
+		private Mirror(File gitDir, File lockFile, FileChannel channel,
+				ReentrantLock localLock) {
+			this.gitDir = gitDir;
+			this.lockFile = lockFile;
+			this.channel = channel;
+			this.localLock = localLock;
+		}
+
+		/**
+		 * @return the git directory of the mirror, to fetch from
+		 */
+		File getGitDir() {
+			return gitDir;
+		}
+
+		/**
+		 * @return the number of bytes that the objects of the mirror grew by
+		 *         when updating
+		 */
+		long getBytesFetched() {
+			return bytesFetched;
+		}
+
+		private void update(URIish uri) throws IOException, GitAPIException {
+			lockFile.setLastModified(System.currentTimeMillis());
+			try (Repository repository = new RepositoryBuilder().setGitDir(gitDir).setBare()
+					.build()) {
+				if (!new File(gitDir, Constants.HEAD).exists()) {
+					// Not created yet, or creating it was interrupted
+					FileUtils.delete(gitDir, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+					repository.create(true);
+					// Fetching packs the mirror when needed, while it is locked
+					StoredConfig config = repository.getConfig();
+					config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null,
+							ConfigConstants.CONFIG_KEY_AUTODETACH, false);
+					config.save();
+				}
+				Path objects = gitDir.toPath().resolve("objects");
+				long size = getSize(objects);
+				new Git(repository).fetch().setRemote(uri.toPrivateString())
+						.setRefSpecs(
+								new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+								new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+						.setTagOpt(TagOpt.NO_TAGS).setRemoveDeletedRefs(true).call();
+				// Less if packing the mirror removed duplicates
+				bytesFetched = Math.max(getSize(objects) - size, 0);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				// Also releases the file lock
+				channel.close();
+			} finally {
+				localLock.unlock();
+			}
+		}
+	}
+}
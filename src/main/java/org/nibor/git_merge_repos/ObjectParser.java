@@ -0,0 +1,125 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * A long-lived object reader and a revision walk on it that keeps the parsed
+ * commits and tags, so that merging many refs with the same commits only
+ * parses them once. Not thread-safe, see {@link ParserPool}.
+ * <p>
+ * The memory that the parsed objects use is estimated from their raw data.
+ * When it exceeds the maximum, the parsed objects are dropped and parsing
+ * starts again with an empty walk (the reader and its pack windows are kept).
+ */
+class ObjectParser implements AutoCloseable {
+
+	// Rough size of a parsed object without its raw data, including the
+	// entry in the object map of the walk
+	private static final int OBJECT_OVERHEAD = 96;
+
+	private final ObjectReader reader;
+	private final long maxBytes;
+	private final MergeStatistics statistics;
+	private RevWalk revWalk;
+	private long estimatedBytes = 0;
+
+	/**
+	 * @param maxBytes
+	 *            how much memory the parsed objects may use (estimated)
+	 */
+	ObjectParser(Repository repository, long maxBytes, MergeStatistics statistics) {
+		this.reader = repository.newObjectReader();
+		this.maxBytes = maxBytes;
+		this.statistics = statistics;
+		this.revWalk = new RevWalk(reader);
+	}
+
+	/**
+	 * @return the reader, for reading trees with the same pack windows
+	 */
+	ObjectReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * @return the estimated memory used by the currently parsed objects
+	 */
+	long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	/**
+	 * @return the commit, after peeling annotated tags
+	 */
+	RevCommit parseCommit(AnyObjectId objectId) throws IOException {
+		RevObject object = peel(parseAny(objectId));
+		if (!(object instanceof RevCommit)) {
+			throw new IncorrectObjectTypeException(objectId.toObjectId(), Constants.TYPE_COMMIT);
+		}
+		return (RevCommit) object;
+	}
+
+	/**
+	 * @return the parsed object, from the cache if it was parsed before
+	 */
+	RevObject parseAny(AnyObjectId objectId) throws IOException {
+		RevObject cached = revWalk.lookupOrNull(objectId);
+		if (cached != null && getRawLength(cached) > 0) {
+			statistics.addObjectCacheHits(1);
+			return cached;
+		}
+		if (estimatedBytes > maxBytes) {
+			// Objects parsed so far stay valid, they are just no longer cached
+			revWalk.close();
+			revWalk = new RevWalk(reader);
+			estimatedBytes = 0;
+			statistics.addObjectCacheEvictions(1);
+		}
+		RevObject object = revWalk.parseAny(objectId);
+		estimatedBytes += OBJECT_OVERHEAD + getRawLength(object);
+		statistics.addObjectCacheMisses(1);
+		statistics.updateObjectCachePeakBytes(estimatedBytes);
+		return object;
+	}
+
+	/**
+	 * @return the object that the tag points to (recursively), or the object
+	 *         itself if it is not a tag
+	 */
+	RevObject peel(RevObject object) throws IOException {
+		while (object instanceof RevTag) {
+			object = parseAny(((RevTag) object).getObject());
+		}
+		return object;
+	}
+
+	@Override
+	public void close() {
+		revWalk.close();
+		reader.close();
+	}
+
+	/**
+	 * @return the length of the raw data of a parsed commit or tag, 0 if it
+	 *         was not parsed (or is another type of object)
+	 */
+	private static int getRawLength(RevObject object) {
+		byte[] buffer = null;
+		if (object instanceof RevCommit) {
+			buffer = ((RevCommit) object).getRawBuffer();
+		} else if (object instanceof RevTag) {
+			buffer = ((RevTag) object).getRawBuffer();
+		}
+		return buffer != null ? buffer.length : 0;
+	}
+}
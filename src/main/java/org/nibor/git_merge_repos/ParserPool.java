@@ -0,0 +1,41 @@
+package org.nibor.git_merge_repos;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Hands out one long-lived {@link ObjectParser} per thread, so that the
+ * commits and tags that many refs have in common are only parsed once per
+ * thread during a run.
+ */
+class ParserPool implements AutoCloseable {
+
+	private final Repository repository;
+	private final long maxBytesPerThread;
+	private final MergeStatistics statistics;
+	private final Map<Thread, ObjectParser> parsers = new ConcurrentHashMap<>();
+
+	ParserPool(Repository repository, long maxBytesPerThread, MergeStatistics statistics) {
+		this.repository = repository;
+		this.maxBytesPerThread = maxBytesPerThread;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @return the parser of the current thread
+	 */
+	ObjectParser get() {
+		return parsers.computeIfAbsent(Thread.currentThread(),
+				thread -> new ObjectParser(repository, maxBytesPerThread, statistics));
+	}
+
+	@Override
+	public void close() {
+		for (ObjectParser parser : parsers.values()) {
+			parser.close();
+		}
+		parsers.clear();
+	}
+}
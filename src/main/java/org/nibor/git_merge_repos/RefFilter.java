@@ -0,0 +1,101 @@
+package org.nibor.git_merge_repos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rules for which branches and tags of the input repositories are merged.
+ * <p>
+ * Rules match the full ref name in the input repository (e.g.
+ * <code>refs/tags/ci-*</code>), either as a glob pattern where <code>*</code>
+ * matches within a path component and <code>**</code> across them, or as a
+ * regular expression if prefixed with <code>regex:</code>. Rules can apply to
+ * all repositories or only to one.
+ * <p>
+ * A ref is merged if it matches one of the include rules (or there are none
+ * for its repository) and none of the exclude rules.
+ */
+public class RefFilter {
+
+	private static final String REGEX_PREFIX = "regex:";
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	/**
+	 * @param remoteName
+	 *            the name of the repository the rule applies to, null for all
+	 */
+	public void addInclude(String remoteName, String pattern) {
+		rules.add(new Rule(remoteName, true, compile(pattern)));
+	}
+
+	/**
+	 * @param remoteName
+	 *            the name of the repository the rule applies to, null for all
+	 */
+	public void addExclude(String remoteName, String pattern) {
+		rules.add(new Rule(remoteName, false, compile(pattern)));
+	}
+
+	/**
+	 * @return whether there are no rules, so that all refs are merged
+	 */
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * @return whether the ref of the repository should be merged
+	 */
+	public boolean matches(String remoteName, String refName) {
+		boolean hasIncludes = false;
+		boolean included = false;
+		for (Rule rule : rules) {
+			if (rule.remoteName != null && !rule.remoteName.equals(remoteName)) {
+				continue;
+			}
+			boolean matches = rule.pattern.matcher(refName).matches();
+			if (rule.include) {
+				hasIncludes = true;
+				included |= matches;
+			} else if (matches) {
+				return false;
+			}
+		}
+		return !hasIncludes || included;
+	}
+
+	private static Pattern compile(String pattern) {
+		if (pattern.startsWith(REGEX_PREFIX)) {
+			return Pattern.compile(pattern.substring(REGEX_PREFIX.length()));
+		}
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private static class Rule {
+		private final String remoteName;
+		private final boolean include;
+		private final Pattern pattern;
+
+		Rule(String remoteName, boolean include, Pattern pattern) {
+			this.remoteName = remoteName;
+			this.include = include;
+			this.pattern = pattern;
+		}
+	}
+}
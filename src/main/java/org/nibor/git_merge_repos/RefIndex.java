@@ -0,0 +1,170 @@
+package org.nibor.git_merge_repos;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * The fetched branches and tags of all input repositories, read in one scan of
+ * the ref database: For each ref name, the IDs in the repositories that have
+ * it, in the order of the subtree configs.
+ * <p>
+ * Fetched refs are named e.g. <code>refs/heads/original/repo-one/main</code>,
+ * which is indexed as <code>main</code> under the prefix
+ * <code>refs/heads/original/</code>. The index can also be built from the refs
+ * that the repositories advertise, without fetching them.
+ */
+class RefIndex {
+
+	static final String BRANCHES = "refs/heads/original/";
+	static final String TAGS = "refs/tags/original/";
+
+	private final List<SubtreeConfig> subtreeConfigs;
+	// Looked up once per ref and repository, so not with indexOf
+	private final Map<SubtreeConfig, Integer> configIndexes = new IdentityHashMap<>();
+	private final Map<String, TreeMap<String, Entry>> entriesByPrefix = new HashMap<>();
+
+	private RefIndex(List<SubtreeConfig> subtreeConfigs) {
+		this.subtreeConfigs = subtreeConfigs;
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			configIndexes.put(subtreeConfigs.get(i), i);
+		}
+		entriesByPrefix.put(BRANCHES, new TreeMap<>());
+		entriesByPrefix.put(TAGS, new TreeMap<>());
+	}
+
+	/**
+	 * @param refFilter
+	 *            refs that don't match it are left out, e.g. when they were
+	 *            fetched before the filter changed
+	 */
+	static RefIndex read(Repository repository, List<SubtreeConfig> subtreeConfigs,
+			RefFilter refFilter) throws IOException {
+		Map<String, Integer> configIndexes = new HashMap<>();
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			configIndexes.put(subtreeConfigs.get(i).getRemoteName(), i);
+		}
+
+		RefIndex index = new RefIndex(subtreeConfigs);
+		for (String prefix : new String[] { BRANCHES, TAGS }) {
+			for (Ref ref : repository.getRefDatabase().getRefsByPrefix(prefix)) {
+				// unprefixed: repo-one/main
+				String unprefixed = ref.getName().substring(prefix.length());
+				int slash = unprefixed.indexOf('/');
+				Integer configIndex = slash != -1
+						? configIndexes.get(unprefixed.substring(0, slash)) : null;
+				if (configIndex != null) {
+					index.add(prefix, configIndex, unprefixed.substring(slash + 1), ref,
+							refFilter);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @param remoteRefs
+	 *            the refs as advertised by each repository, e.g.
+	 *            <code>refs/heads/main</code>
+	 */
+	static RefIndex fromRemoteRefs(List<SubtreeConfig> subtreeConfigs,
+			Map<SubtreeConfig, Collection<Ref>> remoteRefs, RefFilter refFilter) {
+		RefIndex index = new RefIndex(subtreeConfigs);
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			Collection<Ref> refs = remoteRefs.get(subtreeConfigs.get(i));
+			if (refs == null) {
+				continue;
+			}
+			for (Ref ref : refs) {
+				String name = ref.getName();
+				if (name.startsWith(Constants.R_HEADS)) {
+					index.add(BRANCHES, i, name.substring(Constants.R_HEADS.length()), ref,
+							refFilter);
+				} else if (name.startsWith(Constants.R_TAGS)) {
+					index.add(TAGS, i, name.substring(Constants.R_TAGS.length()), ref, refFilter);
+				}
+			}
+		}
+		return index;
+	}
+
+	private void add(String prefix, int configIndex, String name, Ref ref, RefFilter refFilter) {
+		// e.g. refs/heads/ for matching against the filter
+		String inputPrefix = prefix.substring(0, prefix.length() - "original/".length());
+		if (ref.isSymbolic() || ref.getObjectId() == null || !refFilter
+				.matches(subtreeConfigs.get(configIndex).getRemoteName(), inputPrefix + name)) {
+			return;
+		}
+		TreeMap<String, Entry> entries = entriesByPrefix.get(prefix);
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			entry = new Entry(subtreeConfigs.size());
+			entries.put(name, entry);
+		}
+		entry.objectIds[configIndex] = ref.getObjectId();
+		if (ref.isPeeled()) {
+			ObjectId peeled = ref.getPeeledObjectId();
+			entry.peeledIds[configIndex] = peeled != null ? peeled : ref.getObjectId();
+		}
+	}
+
+	/**
+	 * @return the sorted names of the refs with the prefix, without the prefix
+	 *         and the repository name
+	 */
+	Collection<String> getNames(String prefix) {
+		return Collections.unmodifiableSet(entriesByPrefix.get(prefix).keySet());
+	}
+
+	/**
+	 * @return the IDs of the ref in the repositories that have it
+	 */
+	Map<SubtreeConfig, ObjectId> resolve(String prefix, String name) {
+		Map<SubtreeConfig, ObjectId> result = new LinkedHashMap<>();
+		Entry entry = entriesByPrefix.get(prefix).get(name);
+		if (entry == null) {
+			return result;
+		}
+		for (int i = 0; i < entry.objectIds.length; i++) {
+			if (entry.objectIds[i] != null) {
+				result.put(subtreeConfigs.get(i), entry.objectIds[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ID of the commit that the ref points to after peeling
+	 *         annotated tags, or null if the ref database didn't have that
+	 *         information (then the object has to be parsed to find out)
+	 */
+	ObjectId getPeeledId(String prefix, String name, SubtreeConfig config) {
+		Entry entry = entriesByPrefix.get(prefix).get(name);
+		Integer configIndex = configIndexes.get(config);
+		if (entry == null || configIndex == null) {
+			return null;
+		}
+		return entry.peeledIds[configIndex];
+	}
+
+	private static class Entry {
+		private final ObjectId[] objectIds;
+		private final ObjectId[] peeledIds;
+
+		Entry(int configs) {
+			objectIds = new ObjectId[configs];
+			peeledIds = new ObjectId[configs];
+		}
+	}
+}
@@ -1,211 +1,1557 @@
 package org.nibor.git_merge_repos;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.file.FileReftableDatabase;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.GC.RepoStatistics;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
-import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+import org.nibor.git_merge_repos.SubtreeConfig.SourceType;
 
 /**
  * Fetches original repos, merges original branches/tags of different repos and
  * creates branches/tags that point to new merge commits.
  */
-public class RepoMerger {
+public class RepoMerger implements AutoCloseable {
+
+	public static final int DEFAULT_FETCH_THREADS = 4;
+	public static final int DEFAULT_FETCH_RETRIES = 2;
+	public static final int DEFAULT_OBJECT_CACHE_MB = 64;
+	public static final int DEFAULT_MIRROR_CACHE_MB = 10240;
+
+	private static final long FETCH_RETRY_DELAY_MS = 1000;
+	private static final int MAX_REPORTED_REF_FAILURES = 20;
+	// Merges that may be started before the result of the oldest is handled
+	private static final int MERGES_PER_THREAD_IN_FLIGHT = 4;
 
 	private final List<SubtreeConfig> subtreeConfigs;
 	private final Repository repository;
 
+	private int fetchThreads = DEFAULT_FETCH_THREADS;
+	private int fetchRetries = DEFAULT_FETCH_RETRIES;
+	private int mergeThreads = 1;
+	private boolean packObjects = false;
+	private MergeCache mergeCache = new MergeCache();
+	private OutputStream fastImportOutput = null;
+	private boolean validateOverlaps = false;
+	private boolean linkLocalObjects = false;
+	private boolean repack = false;
+	private boolean reftable = false;
+	private int repackThreads = 0;
+	private int repackMemoryMegabytes = 0;
+	private RefFilter refFilter = new RefFilter();
+	private int shardIndex = 0;
+	private int shardCount = 1;
+	private MirrorCache mirrorCache = null;
+	private long objectCacheBytes = DEFAULT_OBJECT_CACHE_MB * 1024L * 1024L;
+
+	private MergeState previousState;
+	private RefIndex refIndex;
+	private final AtomicInteger unchangedRefCount = new AtomicInteger();
+	private int mergedRefCount;
+	private int incompleteRefCount;
+	private Consumer<MergedRef> mergedRefListener = null;
+	private MergeStatistics statistics = new MergeStatistics();
+
 	public RepoMerger(File outputRepositoryPath,
 			List<SubtreeConfig> subtreeConfigs) throws IOException {
+		this(outputRepositoryPath, subtreeConfigs, false);
+	}
+
+	/**
+	 * @param bare
+	 *            whether the output repository should be a bare repository
+	 *            (located directly at the passed path), which saves checking
+	 *            out the files
+	 */
+	public RepoMerger(File outputRepositoryPath, List<SubtreeConfig> subtreeConfigs,
+			boolean bare) throws IOException {
+		checkUniqueRemoteNames(subtreeConfigs);
 		this.subtreeConfigs = subtreeConfigs;
-		repository = new RepositoryBuilder().setWorkTree(outputRepositoryPath).build();
-		if (!repository.getDirectory().exists()) {
-			repository.create();
+		RepositoryBuilder builder = new RepositoryBuilder();
+		if (bare) {
+			builder.setGitDir(outputRepositoryPath).setBare();
+		} else {
+			builder.setWorkTree(outputRepositoryPath);
+		}
+		// Created on the first run, so that planning leaves no trace
+		repository = builder.build();
+	}
+
+	/**
+	 * @param fetchThreads
+	 *            the maximum number of repositories to fetch at the same time
+	 */
+	public void setFetchThreads(int fetchThreads) {
+		if (fetchThreads < 1) {
+			throw new IllegalArgumentException("Fetch threads must be at least 1: " + fetchThreads);
 		}
+		this.fetchThreads = fetchThreads;
+	}
+
+	/**
+	 * @param fetchRetries
+	 *            how many times a failed fetch of a repository is retried
+	 *            before giving up
+	 */
+	public void setFetchRetries(int fetchRetries) {
+		if (fetchRetries < 0) {
+			throw new IllegalArgumentException("Fetch retries must not be negative: " + fetchRetries);
+		}
+		this.fetchRetries = fetchRetries;
+	}
+
+	/**
+	 * @param mergeThreads
+	 *            the number of threads that create merge commits in parallel,
+	 *            1 to create them one after the other
+	 */
+	public void setMergeThreads(int mergeThreads) {
+		if (mergeThreads < 1) {
+			throw new IllegalArgumentException("Merge threads must be at least 1: " + mergeThreads);
+		}
+		this.mergeThreads = mergeThreads;
+	}
+
+	/**
+	 * @param packObjects
+	 *            whether the created trees, commits and tags should be written
+	 *            into a pack file (one per merge thread) at the end instead of
+	 *            as loose objects
+	 */
+	public void setPackObjects(boolean packObjects) {
+		this.packObjects = packObjects;
+	}
+
+	/**
+	 * @param fastImportOutput
+	 *            where to write the merge commits, tags and ref updates as a
+	 *            stream for <code>git fast-import</code> instead of creating
+	 *            them in the output repository, or null to create them
+	 *            directly. The stream must be imported into the output
+	 *            repository, as it references the fetched objects by ID.
+	 */
+	public void setFastImportOutput(OutputStream fastImportOutput) {
+		this.fastImportOutput = fastImportOutput;
+	}
+
+	/**
+	 * @param validateOverlaps
+	 *            whether all refs should be checked for overlapping trees
+	 *            (in parallel) before merging any of them, so that all
+	 *            overlaps are reported at once
+	 */
+	public void setValidateOverlaps(boolean validateOverlaps) {
+		this.validateOverlaps = validateOverlaps;
+	}
+
+	/**
+	 * @param linkLocalObjects
+	 *            whether repositories on the local file system should not be
+	 *            fetched, but their objects used in place (via
+	 *            <code>objects/info/alternates</code>) and only their refs
+	 *            copied. The output repository then only works as long as the
+	 *            input repositories exist, unless it is repacked.
+	 */
+	public void setLinkLocalObjects(boolean linkLocalObjects) {
+		this.linkLocalObjects = linkLocalObjects;
+	}
+
+	/**
+	 * @param repack
+	 *            whether all objects should be repacked into one
+	 *            delta-compressed pack with a bitmap index at the end, which
+	 *            also copies the objects of linked repositories so that the
+	 *            output repository no longer needs them
+	 */
+	public void setRepack(boolean repack) {
+		this.repack = repack;
+	}
+
+	/**
+	 * @param reftable
+	 *            whether the output repository should store its refs in a
+	 *            reftable instead of loose refs and packed-refs, which is
+	 *            faster with many refs (an existing output repository is
+	 *            converted). Each batch of ref updates is written as one table.
+	 */
+	public void setReftable(boolean reftable) {
+		this.reftable = reftable;
+	}
+
+	/**
+	 * @param repackThreads
+	 *            number of threads for searching deltas when repacking, 0 for
+	 *            one per processor
+	 */
+	public void setRepackThreads(int repackThreads) {
+		this.repackThreads = repackThreads;
+	}
+
+	/**
+	 * @param megabytes
+	 *            how much memory searching deltas may use when repacking, 0
+	 *            for the default of JGit (or the repository configuration)
+	 */
+	public void setRepackMemory(int megabytes) {
+		this.repackMemoryMegabytes = megabytes;
+	}
+
+	/**
+	 * @param refFilter
+	 *            which branches and tags of the input repositories to fetch
+	 *            and merge
+	 */
+	public void setRefFilter(RefFilter refFilter) {
+		this.refFilter = refFilter;
+	}
+
+	/**
+	 * Makes runs merge only a share of the branches and tags, so that the
+	 * shares can be merged by separate processes (or machines) into separate
+	 * output repositories, and then be put together with
+	 * {@link #combine(List)}. The refs are assigned to shards by a hash of
+	 * their name, so every shard only fetches the objects of its refs.
+	 *
+	 * @param shardIndex
+	 *            the share to merge, from 0 to shardCount - 1
+	 * @param shardCount
+	 *            the number of shares, 1 to merge all refs
+	 */
+	public void setShard(int shardIndex, int shardCount) {
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+			throw new IllegalArgumentException("Invalid shard " + shardIndex + " of "
+					+ shardCount + ", must be from 0 to the number of shards - 1");
+		}
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @param directory
+	 *            where to keep mirrors of the remote repositories across runs,
+	 *            so that only the objects that are new since a previous run are
+	 *            transferred, or null to fetch directly. Local repositories,
+	 *            bundles and fast-export streams are not mirrored.
+	 * @param maxMegabytes
+	 *            how large the mirrors may get together before the least
+	 *            recently used ones are deleted
+	 */
+	public void setMirrorCache(File directory, int maxMegabytes) {
+		if (directory == null) {
+			mirrorCache = null;
+		} else if (mirrorCache == null || !mirrorCache.getDirectory().equals(directory)
+				|| mirrorCache.getMaxBytes() != maxMegabytes * 1024L * 1024L) {
+			mirrorCache = new MirrorCache(directory, maxMegabytes * 1024L * 1024L);
+		}
+	}
+
+	/**
+	 * @param mergedRefListener
+	 *            called with each merged branch and then tag (in the order of
+	 *            their names) once it is merged, so that the refs don't have
+	 *            to be kept until the end of a run for reporting them, or null
+	 */
+	public void setMergedRefListener(Consumer<MergedRef> mergedRefListener) {
+		this.mergedRefListener = mergedRefListener;
+	}
+
+	/**
+	 * @param megabytes
+	 *            how much memory the parsed commits and tags may use per merge
+	 *            thread, which are kept for the whole run so that refs with
+	 *            the same commits don't parse them again
+	 */
+	public void setObjectCacheSize(int megabytes) {
+		this.objectCacheBytes = megabytes * 1024L * 1024L;
 	}
 
-	public List<MergedRef> run() throws IOException, GitAPIException {
+	/**
+	 * @return the cache of merged trees, with the number of hits
+	 *         and misses of the last run
+	 */
+	public MergeCache getMergeCache() {
+		return mergeCache;
+	}
+
+	/**
+	 * @return the number of refs in the last run that were not merged again
+	 *         because their refs in the input repositories did not change
+	 *         since the run before
+	 */
+	public int getUnchangedRefCount() {
+		return unchangedRefCount.get();
+	}
+
+	/**
+	 * @return the number of branches and tags of the last run (including the
+	 *         unchanged ones)
+	 */
+	public int getMergedRefCount() {
+		return mergedRefCount;
+	}
+
+	/**
+	 * @return the number of branches and tags of the last run that were
+	 *         missing in some of the repositories
+	 */
+	public int getIncompleteRefCount() {
+		return incompleteRefCount;
+	}
+
+	/**
+	 * @return the timings and counters of the last run
+	 */
+	public MergeStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Fetches and merges the repositories. If the output repository has been
+	 * merged into before (with the same subtree configs), only the refs that
+	 * changed since then are merged again.
+	 * <p>
+	 * When writing a fast-import stream, the repositories are still fetched
+	 * into the output repository, but all refs are merged and nothing else is
+	 * changed there until the stream is imported.
+	 *
+	 * @see #setMergedRefListener(Consumer)
+	 */
+	public void run() throws IOException, GitAPIException {
+		if (!repository.getDirectory().exists()) {
+			repository.create(repository.isBare());
+		}
+		if (reftable && !(repository.getRefDatabase() instanceof FileReftableDatabase)) {
+			convertToReftable();
+		}
+		File stateFile = getStateFile();
+		previousState = fastImportOutput != null ? MergeState.empty()
+				: MergeState.read(stateFile, subtreeConfigs);
+		// Kept from the previous run, the repository may have lost objects
+		// since (e.g. pruned by a gc between jobs of the server)
+		mergeCache.retainExisting(repository);
+		unchangedRefCount.set(0);
+		mergedRefCount = 0;
+		incompleteRefCount = 0;
+		statistics = new MergeStatistics();
+
+		long start = System.nanoTime();
+		long packSize = getPackSize();
 		fetch();
-		List<MergedRef> mergedBranches = mergeBranches();
-		List<MergedRef> mergedTags = mergeTags();
-		List<MergedRef> mergedRefs = new ArrayList<>();
-		mergedRefs.addAll(mergedBranches);
-		mergedRefs.addAll(mergedTags);
-		deleteOriginalRefs();
-		resetToBranch();
-		return mergedRefs;
+		statistics.addBytesFetched(getPackSize() - packSize);
+		statistics.addPhase("fetch", start);
+
+		start = System.nanoTime();
+		refIndex = readRefIndex();
+		statistics.addPhase("indexRefs", start);
+
+		if (validateOverlaps) {
+			start = System.nanoTime();
+			validateOverlaps();
+			statistics.addPhase("validate", start);
+		}
+
+		// The stream is written while merging, so that the merge commits don't
+		// have to be kept until all refs are merged
+		FastImportWriter fastImportWriter = fastImportOutput != null
+				? new FastImportWriter(fastImportOutput) : null;
+		List<RefMergeResult> mergeResults = new ArrayList<>();
+		// Likewise the state, it only replaces the previous one at the end
+		try (MergeState.Writer stateWriter = fastImportWriter == null
+				? MergeState.write(stateFile, subtreeConfigs, shardIndex, shardCount) : null) {
+			try (InserterPool inserters = new InserterPool(repository, packObjects)) {
+				start = System.nanoTime();
+				mergeRefs(inserters, result -> {
+					if (fastImportWriter != null) {
+						writeFastImport(fastImportWriter, result);
+					} else {
+						addState(stateWriter, result);
+						mergeResults.add(result);
+					}
+				});
+				statistics.addPhase("merge", start);
+				// The refs can only point to the new objects once they are written
+				start = System.nanoTime();
+				inserters.flush();
+				statistics.addPhase("flushObjects", start);
+			}
+
+			start = System.nanoTime();
+			if (fastImportWriter != null) {
+				writeFastImportDeletes(fastImportWriter);
+				statistics.addPhase("writeFastImport", start);
+			} else {
+				createMergedRefs(mergeResults);
+				stateWriter.commit();
+				statistics.addPhase("updateRefs", start);
+			}
+		}
+		if (fastImportOutput == null) {
+			start = System.nanoTime();
+			deleteOriginalRefs();
+			statistics.addPhase("deleteOriginalRefs", start);
+			checkOut();
+		}
+		if (repack) {
+			start = System.nanoTime();
+			repack();
+			statistics.addPhase("repack", start);
+		}
 	}
 
-	private void fetch() throws GitAPIException {
-		for (SubtreeConfig config : subtreeConfigs) {
-			RefSpec branchesSpec = new RefSpec(
-					"refs/heads/*:refs/heads/original/"
-							+ config.getRemoteName() + "/*");
-			RefSpec tagsSpec = new RefSpec("refs/tags/*:refs/tags/original/"
-					+ config.getRemoteName() + "/*");
-			Git git = new Git(repository);
-			git.fetch().setRemote(config.getFetchUri().toPrivateString())
-					.setRefSpecs(branchesSpec, tagsSpec).call();
+	/**
+	 * Closes the output repository, which releases its open pack files and
+	 * cached pack data. The merger can't be used afterwards.
+	 */
+	@Override
+	public void close() {
+		repository.close();
+	}
+
+	/**
+	 * Plans a run without fetching or changing anything: Lists the refs that
+	 * the repositories advertise, and works out which branches and tags would
+	 * be merged, which repositories are missing them, and how many merges
+	 * that takes. Refs that didn't change since the previous run into the
+	 * output repository are counted as unchanged.
+	 *
+	 * @see #setMergedRefListener(Consumer)
+	 */
+	public MergePlan plan() throws IOException {
+		previousState = MergeState.read(getStateFile(), subtreeConfigs);
+		unchangedRefCount.set(0);
+		mergedRefCount = 0;
+		incompleteRefCount = 0;
+		statistics = new MergeStatistics();
+
+		long start = System.nanoTime();
+		Map<SubtreeConfig, Collection<Ref>> remoteRefs = listRemoteRefs();
+		statistics.addPhase("listRefs", start);
+
+		start = System.nanoTime();
+		RefIndex index = RefIndex.fromRemoteRefs(subtreeConfigs, remoteRefs, refFilter);
+		// Refs with the same commits need only one merge of their trees
+		Set<List<ObjectId>> commitCombinations = new HashSet<>();
+		for (String prefix : new String[] { RefIndex.BRANCHES, RefIndex.TAGS }) {
+			boolean branches = prefix.equals(RefIndex.BRANCHES);
+			for (String name : index.getNames(prefix)) {
+				Map<SubtreeConfig, ObjectId> resolvedRefs = index.resolve(prefix, name);
+				report(getMergedRef(branches ? "branch" : "tag", name, resolvedRefs.keySet()));
+				String refName = (branches ? Constants.R_HEADS : Constants.R_TAGS) + name;
+				if (isUnchanged(refName, resolvedRefs)) {
+					unchangedRefCount.incrementAndGet();
+					continue;
+				}
+				List<ObjectId> commits = new ArrayList<>();
+				for (Map.Entry<SubtreeConfig, ObjectId> entry : resolvedRefs.entrySet()) {
+					ObjectId peeledId = index.getPeeledId(prefix, name, entry.getKey());
+					commits.add(peeledId != null ? peeledId : entry.getValue());
+				}
+				commitCombinations.add(commits);
+			}
+		}
+		statistics.addPhase("plan", start);
+		return new MergePlan(index.getNames(RefIndex.BRANCHES).size(),
+				index.getNames(RefIndex.TAGS).size(), incompleteRefCount,
+				unchangedRefCount.get(), commitCombinations.size());
+	}
+
+	/**
+	 * Puts together the output repositories of runs of all shards (see
+	 * {@link #setShard(int, int)}) into the output repository, as if all refs
+	 * had been merged by one run.
+	 * <p>
+	 * First the refs that the repositories currently advertise are listed
+	 * (like for {@link #plan()}), and the shards are checked against them:
+	 * Every ref has to be merged by the shard it belongs to, from the same
+	 * input refs, and no shard may have merged other refs. Only then the
+	 * objects of the shards are fetched (a pack per shard) and the merged
+	 * refs created.
+	 *
+	 * @param shardDirectories
+	 *            the output directories of the shards, in any order
+	 * @throws IllegalStateException
+	 *             if a shard is missing or doesn't match, listing which refs
+	 *             have to be merged again
+	 * @see #setMergedRefListener(Consumer)
+	 */
+	public void combine(List<File> shardDirectories) throws IOException, GitAPIException {
+		if (shardCount != 1) {
+			throw new IllegalStateException("Shards can't be combined by a shard");
+		}
+		List<File> shardGitDirs = new ArrayList<>();
+		List<MergeState> shardStates = new ArrayList<>();
+		for (File shardDirectory : shardDirectories) {
+			File gitDir = RepositoryCache.FileKey.resolve(shardDirectory, FS.DETECTED);
+			if (gitDir == null) {
+				throw new IllegalStateException("Not a repository: " + shardDirectory);
+			}
+			shardGitDirs.add(gitDir.getAbsoluteFile());
+		}
+		for (File gitDir : shardGitDirs) {
+			MergeState state = MergeState.read(new File(gitDir, "merge-repos-state"));
+			if (!state.isFor(subtreeConfigs)) {
+				throw new IllegalStateException("Shard " + gitDir
+						+ " was not merged from the same repositories and directories");
+			}
+			shardStates.add(state);
+		}
+		checkShardsComplete(shardGitDirs, shardStates);
+		unchangedRefCount.set(0);
+		mergedRefCount = 0;
+		incompleteRefCount = 0;
+		statistics = new MergeStatistics();
+
+		long start = System.nanoTime();
+		Map<SubtreeConfig, Collection<Ref>> remoteRefs = listRemoteRefs();
+		statistics.addPhase("listRefs", start);
+
+		start = System.nanoTime();
+		List<RefMergeResult> results = checkShardRefs(
+				RefIndex.fromRemoteRefs(subtreeConfigs, remoteRefs, refFilter), shardStates);
+		statistics.addPhase("checkShards", start);
+
+		// Created only now, so that shards that don't match leave no trace
+		if (!repository.getDirectory().exists()) {
+			repository.create(repository.isBare());
+		}
+		if (reftable && !(repository.getRefDatabase() instanceof FileReftableDatabase)) {
+			convertToReftable();
+		}
+		File stateFile = getStateFile();
+		previousState = MergeState.read(stateFile, subtreeConfigs);
+
+		start = System.nanoTime();
+		long packSize = getPackSize();
+		Git git = new Git(repository);
+		for (File gitDir : shardGitDirs) {
+			// Only the objects, the refs are created from the merge states
+			git.fetch().setRemote(gitDir.getPath())
+					.setRefSpecs(new RefSpec(Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+							new RefSpec(Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+					.setTagOpt(TagOpt.NO_TAGS).setDryRun(true).call();
+		}
+		statistics.addBytesFetched(getPackSize() - packSize);
+		statistics.addPhase("fetch", start);
+
+		start = System.nanoTime();
+		try (MergeState.Writer stateWriter = MergeState.write(stateFile, subtreeConfigs,
+				shardIndex, shardCount)) {
+			for (RefMergeResult result : results) {
+				addState(stateWriter, result);
+			}
+			createMergedRefs(results);
+			stateWriter.commit();
+		}
+		statistics.addPhase("updateRefs", start);
+		checkOut();
+		if (repack) {
+			start = System.nanoTime();
+			repack();
+			statistics.addPhase("repack", start);
 		}
 	}
 
-	private List<MergedRef> mergeBranches() throws IOException {
-		List<MergedRef> mergedRefs = new ArrayList<>();
-		Collection<String> branches = getRefSet("refs/heads/original/");
-		for (String branch : branches) {
-			MergedRef mergedBranch = mergeBranch(branch);
-			mergedRefs.add(mergedBranch);
+	/**
+	 * Checks that there is exactly one directory per shard, and that all were
+	 * merged with the same number of shards.
+	 */
+	private static void checkShardsComplete(List<File> shardGitDirs,
+			List<MergeState> shardStates) {
+		if (shardStates.isEmpty()) {
+			throw new IllegalStateException("No shards to combine");
+		}
+		int count = shardStates.get(0).getShardCount();
+		File[] dirsByIndex = new File[count];
+		for (int i = 0; i < shardStates.size(); i++) {
+			MergeState state = shardStates.get(i);
+			File gitDir = shardGitDirs.get(i);
+			if (state.getShardCount() != count) {
+				throw new IllegalStateException("Shard " + gitDir + " is one of "
+						+ state.getShardCount() + " shards, not of " + count);
+			}
+			File other = dirsByIndex[state.getShardIndex()];
+			if (other != null) {
+				throw new IllegalStateException("Shards " + other + " and " + gitDir
+						+ " both are shard " + state.getShardIndex());
+			}
+			dirsByIndex[state.getShardIndex()] = gitDir;
+		}
+		for (int i = 0; i < count; i++) {
+			if (dirsByIndex[i] == null) {
+				throw new IllegalStateException("Shard " + i + " of " + count + " is missing");
+			}
 		}
-		return mergedRefs;
 	}
 
-	private List<MergedRef> mergeTags() throws IOException {
-		List<MergedRef> mergedRefs = new ArrayList<>();
-		Collection<String> tags = getRefSet("refs/tags/original/");
-		for (String tag : tags) {
-			MergedRef mergedTag = mergeTag(tag);
-			mergedRefs.add(mergedTag);
+	/**
+	 * Compares the refs merged by the shards with the refs that a run of all
+	 * shards would merge from the listed refs.
+	 *
+	 * @return the merged refs of the shards, in the order that one run would
+	 *         have merged them
+	 */
+	private List<RefMergeResult> checkShardRefs(RefIndex index, List<MergeState> shardStates) {
+		Map<String, MergeState.Entry> shardEntries = new HashMap<>();
+		Map<String, Integer> entryShards = new HashMap<>();
+		for (MergeState state : shardStates) {
+			for (MergeState.Entry entry : state.getEntries()) {
+				shardEntries.put(entry.getRefName(), entry);
+				entryShards.put(entry.getRefName(), state.getShardIndex());
+			}
 		}
-		return mergedRefs;
+		int count = shardStates.get(0).getShardCount();
+
+		List<RefMergeResult> results = new ArrayList<>();
+		List<String> mismatches = new ArrayList<>();
+		for (String prefix : new String[] { RefIndex.BRANCHES, RefIndex.TAGS }) {
+			boolean branches = prefix.equals(RefIndex.BRANCHES);
+			for (String name : index.getNames(prefix)) {
+				Map<SubtreeConfig, ObjectId> resolvedRefs = index.resolve(prefix, name);
+				String refName = (branches ? Constants.R_HEADS : Constants.R_TAGS) + name;
+				MergeState.Entry entry = shardEntries.remove(refName);
+				ObjectId[] sourceIds = getSourceIds(resolvedRefs);
+				if (entry == null) {
+					mismatches.add(refName + " (not merged by shard " + getShard(refName, count)
+							+ ")");
+				} else if (entryShards.get(refName) != getShard(refName, count)) {
+					mismatches.add(refName + " (merged by shard " + entryShards.get(refName)
+							+ " instead of " + getShard(refName, count) + ")");
+				} else if (!entry.hasSourceIds(sourceIds)) {
+					mismatches.add(refName + " (changed since shard " + entryShards.get(refName)
+							+ " merged it)");
+				} else {
+					MergedRef mergedRef = getMergedRef(branches ? "branch" : "tag", name,
+							resolvedRefs.keySet());
+					results.add(report(new RefMergeResult(mergedRef, refName,
+							entry.getMergedId(), sourceIds, !branches)));
+				}
+			}
+		}
+		for (String refName : shardEntries.keySet()) {
+			mismatches.add(refName + " (merged by shard " + entryShards.get(refName)
+					+ ", but no longer in the repositories or excluded)");
+		}
+		if (!mismatches.isEmpty()) {
+			Collections.sort(mismatches);
+			StringBuilder report = new StringBuilder();
+			for (String mismatch : mismatches.subList(0,
+					Math.min(mismatches.size(), MAX_REPORTED_REF_FAILURES))) {
+				report.append("\n\t").append(mismatch);
+			}
+			if (mismatches.size() > MAX_REPORTED_REF_FAILURES) {
+				report.append("\n\t... and ").append(mismatches.size() - MAX_REPORTED_REF_FAILURES)
+						.append(" more");
+			}
+			throw new IllegalStateException("Shards don't match a merge of the current refs of "
+					+ "the repositories in " + mismatches.size() + " refs, nothing was combined. "
+					+ "Merge the shards again (with --incremental) and then combine them:"
+					+ report);
+		}
+		return results;
 	}
 
-	private void deleteOriginalRefs() throws IOException {
-		try (RevWalk revWalk = new RevWalk(repository)) {
-			Collection<Ref> refs = new ArrayList<>();
-			RefDatabase refDatabase = repository.getRefDatabase();
-			List<Ref> originalBranches = refDatabase.getRefsByPrefix("refs/heads/original/");
-			List<Ref> originalTags = refDatabase.getRefsByPrefix("refs/tags/original/");
-			refs.addAll(originalBranches);
-			refs.addAll(originalTags);
-			for (Ref originalRef : refs) {
-				RefUpdate refUpdate = repository.updateRef(originalRef.getName());
-				refUpdate.setForceUpdate(true);
-				refUpdate.delete(revWalk);
+	/**
+	 * @return the shard that merges the ref
+	 */
+	static int getShard(String refName, int shardCount) {
+		return Math.floorMod(refName.hashCode(), shardCount);
+	}
+
+	private boolean isInShard(String refName) {
+		return shardCount == 1 || getShard(refName, shardCount) == shardIndex;
+	}
+
+	/**
+	 * @return the branches and tags that the repositories advertise (of the
+	 *         shard, if sharded), without fetching them
+	 */
+	private Map<SubtreeConfig, Collection<Ref>> listRemoteRefs() throws IOException {
+		Git git = new Git(repository);
+		Map<SubtreeConfig, Collection<Ref>> remoteRefs = callRemotes(subtreeConfigs,
+				"Listing refs of", config -> config.getSourceType() == SourceType.FAST_EXPORT
+						? listFastExportRefs(config)
+						: git.lsRemote().setRemote(config.getFetchUri().toPrivateString())
+								.setHeads(true).setTags(true).call());
+		for (Collection<Ref> refs : remoteRefs.values()) {
+			refs.removeIf(ref -> !isInShard(ref.getName()));
+		}
+		return remoteRefs;
+	}
+
+	private void fetch() throws IOException {
+		// The fetches only transfer objects (dry run), the refs of all of them
+		// are then created in one batch so that they don't compete for the
+		// packed-refs lock.
+		BatchRefUpdate batch = newBatchUpdate();
+		Map<SubtreeConfig, File> linkedGitDirs = new LinkedHashMap<>();
+		if (linkLocalObjects) {
+			for (SubtreeConfig config : subtreeConfigs) {
+				File gitDir = config.getSourceType() == SourceType.REPOSITORY
+						? getLocalGitDir(config.getFetchUri()) : null;
+				if (gitDir != null) {
+					linkedGitDirs.put(config, gitDir);
+				}
+			}
+			linkObjects(linkedGitDirs.values());
+			for (Map.Entry<SubtreeConfig, File> entry : linkedGitDirs.entrySet()) {
+				importRefs(entry.getKey(), entry.getValue(), batch);
+			}
+		}
+
+		List<SubtreeConfig> configsToFetch = new ArrayList<>(subtreeConfigs);
+		configsToFetch.removeAll(linkedGitDirs.keySet());
+		Git git = new Git(repository);
+		Set<File> usedMirrors = ConcurrentHashMap.newKeySet();
+		try (InserterPool inserters = new InserterPool(repository, packObjects)) {
+			Map<SubtreeConfig, List<ReceiveCommand>> results = callRemotes(configsToFetch,
+					"Fetching", config -> config.getSourceType() == SourceType.FAST_EXPORT
+							? importFastExport(config, inserters.get())
+							: fetch(git, config, usedMirrors));
+			// The refs can only point to the imported objects once they are written
+			inserters.flush();
+			for (List<ReceiveCommand> commands : results.values()) {
+				batch.addCommand(commands);
 			}
 		}
+
+		executeBatch(batch);
+		if (mirrorCache != null) {
+			statistics.addMirrorsEvicted(mirrorCache.evict(usedMirrors));
+		}
+	}
+
+	/**
+	 * Calls the repositories in parallel (up to the number of fetch threads),
+	 * retrying each call as configured.
+	 *
+	 * @param action
+	 *            what the call does, for the error message, e.g. "Fetching"
+	 * @return the results of the calls, in the order of the configs
+	 * @throws IOException
+	 *             if any call failed, with the failures of the others
+	 *             suppressed (only failures of the transport are retried)
+	 */
+	private <T> Map<SubtreeConfig, T> callRemotes(List<SubtreeConfig> configs, String action,
+			RemoteCall<T> call) throws IOException {
+		Map<SubtreeConfig, T> results = new LinkedHashMap<>();
+		if (configs.isEmpty()) {
+			return results;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(fetchThreads, configs.size()));
+		try {
+			Map<SubtreeConfig, Future<T>> futures = new LinkedHashMap<>();
+			for (SubtreeConfig config : configs) {
+				futures.put(config, executor.submit(() -> callWithRetries(config, call)));
+			}
+
+			IOException failure = null;
+			for (Map.Entry<SubtreeConfig, Future<T>> entry : futures.entrySet()) {
+				SubtreeConfig config = entry.getKey();
+				try {
+					results.put(config, entry.getValue().get());
+				} catch (ExecutionException e) {
+					int attempts = e.getCause() instanceof GitAPIException ? fetchRetries + 1 : 1;
+					IOException error = new IOException(action + " repository "
+							+ config.getRemoteName() + " from " + config.getFetchUri()
+							+ " failed after " + attempts + " attempt(s)", e.getCause());
+					if (failure == null) {
+						failure = error;
+					} else {
+						failure.addSuppressed(error);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while calling repositories");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private <T> T callWithRetries(SubtreeConfig config, RemoteCall<T> call)
+			throws GitAPIException, IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return call.call(config);
+			} catch (GitAPIException e) {
+				if (attempt >= fetchRetries) {
+					throw e;
+				}
+				Thread.sleep(FETCH_RETRY_DELAY_MS * (attempt + 1));
+			}
+		}
+	}
+
+	/**
+	 * Fetches the objects of a repository (or bundle), from its mirror if it
+	 * is a remote repository and there is a mirror cache.
+	 *
+	 * @param usedMirrors
+	 *            the git directories of the mirrors that were fetched from
+	 * @return the commands for creating the original refs, none if the ref
+	 *         filter excludes all refs of the repository
+	 */
+	private List<ReceiveCommand> fetch(Git git, SubtreeConfig config, Set<File> usedMirrors)
+			throws GitAPIException, IOException {
+		URIish fetchUri = config.getFetchUri();
+		if (mirrorCache == null || config.getSourceType() != SourceType.REPOSITORY
+				|| getLocalGitDir(fetchUri) != null) {
+			return fetch(git, config, fetchUri.toPrivateString());
+		}
+		try (MirrorCache.Mirror mirror = mirrorCache.update(fetchUri)) {
+			usedMirrors.add(mirror.getGitDir());
+			statistics.addMirrorBytesFetched(mirror.getBytesFetched());
+			return fetch(git, config, mirror.getGitDir().getPath());
+		}
+	}
+
+	private List<ReceiveCommand> fetch(Git git, SubtreeConfig config, String uri)
+			throws GitAPIException {
+		List<ReceiveCommand> commands = new ArrayList<>();
+		List<RefSpec> refSpecs = getRefSpecs(git, config, uri);
+		if (refSpecs.isEmpty()) {
+			return commands;
+		}
+		// Tags are fetched like the branches, not automatically
+		FetchResult result = git.fetch().setRemote(uri).setRefSpecs(refSpecs)
+				.setTagOpt(TagOpt.NO_TAGS).setDryRun(true).call();
+		for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
+			commands.add(new ReceiveCommand(update.getOldObjectId(), update.getNewObjectId(),
+					update.getLocalName()));
+		}
+		return commands;
+	}
+
+	/**
+	 * Reads a fast-export stream directly into the output repository.
+	 *
+	 * @return the commands for creating the original refs of the stream
+	 */
+	private List<ReceiveCommand> importFastExport(SubtreeConfig config, ObjectInserter inserter)
+			throws IOException {
+		Map<String, ObjectId> refs;
+		try (InputStream in = new FileInputStream(config.getFetchUri().getPath())) {
+			refs = new FastExportReader(inserter).read(in);
+		}
+		List<ReceiveCommand> commands = new ArrayList<>();
+		for (Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+			ReceiveCommand command = getOriginalRefCommand(config, ref.getKey(), ref.getValue());
+			if (command != null) {
+				commands.add(command);
+			}
+		}
+		return commands;
+	}
+
+	/**
+	 * Reads a fast-export stream into a repository in memory, for planning.
+	 * Only the trees, commits and tags are kept, the blobs are just hashed.
+	 *
+	 * @return the branches and tags of the stream
+	 */
+	private static Collection<Ref> listFastExportRefs(SubtreeConfig config) throws IOException {
+		Map<String, ObjectId> refs;
+		try (Repository scratch = new InMemoryRepository(
+				new DfsRepositoryDescription(config.getRemoteName()));
+				ObjectInserter inserter = scratch.newObjectInserter();
+				InputStream in = new FileInputStream(config.getFetchUri().getPath())) {
+			refs = new FastExportReader(inserter, true).read(in);
+		}
+		List<Ref> result = new ArrayList<>();
+		for (Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+			result.add(new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, ref.getKey(), ref.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ref specs for fetching the branches and tags of the
+	 *         repository. With a filter (or shards), only the matching refs
+	 *         are listed explicitly, so that the objects of the others are not
+	 *         fetched.
+	 */
+	private List<RefSpec> getRefSpecs(Git git, SubtreeConfig config, String uri)
+			throws GitAPIException {
+		List<RefSpec> refSpecs = new ArrayList<>();
+		if (refFilter.isEmpty() && shardCount == 1) {
+			refSpecs.add(new RefSpec(Constants.R_HEADS + "*:"
+					+ getOriginalRefName(config, Constants.R_HEADS + "*")));
+			refSpecs.add(new RefSpec(Constants.R_TAGS + "*:"
+					+ getOriginalRefName(config, Constants.R_TAGS + "*")));
+			return refSpecs;
+		}
+		Collection<Ref> remoteRefs = git.lsRemote().setRemote(uri).setHeads(true).setTags(true)
+				.call();
+		for (Ref ref : remoteRefs) {
+			if (refFilter.matches(config.getRemoteName(), ref.getName())
+					&& isInShard(ref.getName())) {
+				refSpecs.add(new RefSpec(ref.getName() + ":"
+						+ getOriginalRefName(config, ref.getName())));
+			}
+		}
+		return refSpecs;
+	}
+
+	/**
+	 * @return the name of the ref that an input ref is fetched to, e.g.
+	 *         refs/heads/original/repo-one/main for refs/heads/main
+	 */
+	private static String getOriginalRefName(SubtreeConfig config, String refName) {
+		String prefix = refName.startsWith(Constants.R_HEADS) ? Constants.R_HEADS
+				: Constants.R_TAGS;
+		return prefix + "original/" + config.getRemoteName() + "/"
+				+ refName.substring(prefix.length());
+	}
+
+	/**
+	 * @return the git directory of the repository if it is on the local file
+	 *         system, null otherwise
+	 */
+	private static File getLocalGitDir(URIish uri) {
+		if (uri.getHost() != null || (uri.getScheme() != null && !uri.getScheme().equals("file"))) {
+			return null;
+		}
+		File gitDir = RepositoryCache.FileKey.resolve(new File(uri.getPath()), FS.DETECTED);
+		return gitDir != null ? gitDir.getAbsoluteFile() : null;
+	}
+
+	/**
+	 * Adds the object directories of the repositories as alternates, so that
+	 * their objects can be read without copying them.
+	 */
+	private void linkObjects(Collection<File> gitDirs) throws IOException {
+		if (gitDirs.isEmpty()) {
+			return;
+		}
+		File alternatesFile = getAlternatesFile();
+		Set<String> alternates = new LinkedHashSet<>();
+		if (alternatesFile.exists()) {
+			alternates.addAll(Files.readAllLines(alternatesFile.toPath(), StandardCharsets.UTF_8));
+		}
+		for (File gitDir : gitDirs) {
+			alternates.add(new File(gitDir, "objects").getPath());
+		}
+		alternatesFile.getParentFile().mkdirs();
+		Files.write(alternatesFile.toPath(), alternates, StandardCharsets.UTF_8);
+		// Alternates are only read once, closing makes them be read again
+		repository.getObjectDatabase().close();
+	}
+
+	private File getAlternatesFile() {
+		File objectsDirectory = ((ObjectDirectory) repository.getObjectDatabase()).getDirectory();
+		return new File(objectsDirectory, "info/alternates");
+	}
+
+	/**
+	 * Adds commands for creating the original refs of a linked repository,
+	 * like fetching it would.
+	 */
+	private void importRefs(SubtreeConfig config, File gitDir, BatchRefUpdate batch)
+			throws IOException {
+		try (Repository source = new RepositoryBuilder().setGitDir(gitDir).setMustExist(true)
+				.build()) {
+			RefDatabase sourceRefs = source.getRefDatabase();
+			List<Ref> refs = new ArrayList<>(sourceRefs.getRefsByPrefix(Constants.R_HEADS));
+			refs.addAll(sourceRefs.getRefsByPrefix(Constants.R_TAGS));
+			for (Ref ref : refs) {
+				if (ref.isSymbolic() || ref.getObjectId() == null) {
+					continue;
+				}
+				ReceiveCommand command = getOriginalRefCommand(config, ref.getName(),
+						ref.getObjectId());
+				if (command != null) {
+					batch.addCommand(command);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the command for creating the original ref of a branch or tag,
+	 *         null if it is excluded by the filter, in another shard or
+	 *         already up to date
+	 */
+	private ReceiveCommand getOriginalRefCommand(SubtreeConfig config, String refName,
+			ObjectId objectId) throws IOException {
+		if (!(refName.startsWith(Constants.R_HEADS) || refName.startsWith(Constants.R_TAGS))
+				|| !refFilter.matches(config.getRemoteName(), refName)
+				|| !isInShard(refName)) {
+			return null;
+		}
+		String localName = getOriginalRefName(config, refName);
+		ObjectId oldId = getObjectId(repository.exactRef(localName));
+		return oldId.equals(objectId) ? null : new ReceiveCommand(oldId, objectId, localName);
+	}
+
+	/**
+	 * Packs all reachable objects into one pack with a bitmap index, including
+	 * the ones of linked repositories, which are then no longer needed.
+	 */
+	private void repack() throws IOException {
+		PackConfig packConfig = new PackConfig(repository);
+		packConfig.setSinglePack(true);
+		packConfig.setBuildBitmaps(true);
+		if (repackThreads > 0) {
+			packConfig.setThreads(repackThreads);
+		}
+		if (repackMemoryMegabytes > 0) {
+			packConfig.setDeltaSearchMemoryLimit(repackMemoryMegabytes * 1024L * 1024L);
+		}
+		// Nothing else writes to the output repository, so the packs that
+		// were combined and unreachable objects (e.g. the tags of the input
+		// repositories, which were replaced by the merged tags) can be deleted
+		// right away. Set in the configuration (not saved) because only then
+		// the objects of the old packs are not loosened first.
+		StoredConfig config = repository.getConfig();
+		config.setString(ConfigConstants.CONFIG_GC_SECTION, null,
+				ConfigConstants.CONFIG_KEY_PRUNEEXPIRE, "now");
+		config.setString(ConfigConstants.CONFIG_GC_SECTION, null,
+				ConfigConstants.CONFIG_KEY_PRUNEPACKEXPIRE, "now");
+		GC gc = new GC((FileRepository) repository);
+		gc.setPackConfig(packConfig);
+		RepoStatistics before = gc.getStatistics();
+		try {
+			gc.gc().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while repacking");
+		} catch (ExecutionException e) {
+			throw rethrow(e);
+		} catch (ParseException e) {
+			// Only for an invalid gc.pruneExpire in the configuration
+			throw new IOException("Could not repack: " + e.getMessage(), e);
+		}
+		RepoStatistics after = gc.getStatistics();
+		// Merged trees of previous runs may have been unreachable and pruned,
+		// so they can't be reused by the next run
+		mergeCache = new MergeCache();
+		statistics.setRepackSizes(before.sizeOfPackedObjects + before.sizeOfLooseObjects,
+				after.sizeOfPackedObjects + after.sizeOfLooseObjects);
+		File alternatesFile = getAlternatesFile();
+		if (alternatesFile.exists()) {
+			Files.delete(alternatesFile.toPath());
+			repository.getObjectDatabase().close();
+		}
+	}
+
+	/**
+	 * Creates the merge commits for all branches and then all tags.
+	 *
+	 * @param handler
+	 *            called with the result of each merge, in that order
+	 */
+	private void mergeRefs(InserterPool inserters, ResultHandler handler) throws IOException {
+		List<RefMerge> refMerges = new ArrayList<>();
+		for (String branch : refIndex.getNames(RefIndex.BRANCHES)) {
+			refMerges.add((inserter, parser) -> mergeBranch(branch, inserter, parser));
+		}
+		for (String tag : refIndex.getNames(RefIndex.TAGS)) {
+			refMerges.add((inserter, parser) -> mergeTag(tag, inserter, parser));
+		}
+		try (ParserPool parsers = new ParserPool(repository, objectCacheBytes, statistics)) {
+			mergeAll(refMerges, inserters, parsers, handler);
+		}
+	}
+
+	/**
+	 * Runs the passed merges, in parallel if configured, and passes the
+	 * results to the handler in the same order as the merges. Only a few
+	 * merges per thread are started ahead of the oldest unhandled one, so
+	 * that results don't pile up behind a slow merge.
+	 */
+	private void mergeAll(List<RefMerge> refMerges, InserterPool inserters, ParserPool parsers,
+			ResultHandler handler) throws IOException {
+		if (mergeThreads == 1 || refMerges.size() <= 1) {
+			for (RefMerge refMerge : refMerges) {
+				handler.handle(report(merge(refMerge, inserters, parsers)));
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(mergeThreads);
+		try {
+			Deque<Future<RefMergeResult>> futures = new ArrayDeque<>();
+			Iterator<RefMerge> pending = refMerges.iterator();
+			while (pending.hasNext() || !futures.isEmpty()) {
+				while (pending.hasNext()
+						&& futures.size() < mergeThreads * MERGES_PER_THREAD_IN_FLIGHT) {
+					RefMerge refMerge = pending.next();
+					futures.add(executor.submit(() -> merge(refMerge, inserters, parsers)));
+				}
+				handler.handle(report(futures.remove().get()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while merging");
+		} catch (ExecutionException e) {
+			throw rethrow(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Checks the trees of all refs that would be merged for overlaps, without
+	 * writing anything. Refs with the same trees are only checked once.
+	 *
+	 * @throws IllegalStateException
+	 *             listing all refs whose trees overlap, and where
+	 */
+	private void validateOverlaps() throws IOException {
+		List<RefToValidate> refs = new ArrayList<>();
+		for (String branch : refIndex.getNames(RefIndex.BRANCHES)) {
+			refs.add(new RefToValidate("branch", branch, RefIndex.BRANCHES,
+					Constants.R_HEADS + branch));
+		}
+		for (String tag : refIndex.getNames(RefIndex.TAGS)) {
+			refs.add(new RefToValidate("tag", tag, RefIndex.TAGS, Constants.R_TAGS + tag));
+		}
+
+		Map<List<Object>, List<String>> overlapsByTrees = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		try (ParserPool parsers = new ParserPool(repository, objectCacheBytes, statistics)) {
+			List<Future<List<String>>> futures = new ArrayList<>();
+			for (RefToValidate ref : refs) {
+				futures.add(executor.submit(
+						() -> findOverlaps(ref, overlapsByTrees, parsers.get())));
+			}
+
+			StringBuilder report = new StringBuilder();
+			int overlappingRefs = 0;
+			for (int i = 0; i < refs.size(); i++) {
+				List<String> overlaps = futures.get(i).get();
+				if (overlaps.isEmpty()) {
+					continue;
+				}
+				overlappingRefs++;
+				RefToValidate ref = refs.get(i);
+				report.append("\n\t").append(ref.refType).append(" '").append(ref.name)
+						.append("': ");
+				List<String> reported = overlaps.subList(0,
+						Math.min(overlaps.size(), MAX_REPORTED_REF_FAILURES));
+				report.append(String.join(", ", reported));
+				if (overlaps.size() > reported.size()) {
+					report.append(" ... and ").append(overlaps.size() - reported.size())
+							.append(" more");
+				}
+			}
+			if (overlappingRefs > 0) {
+				throw new IllegalStateException("Trees of repositories overlap in "
+						+ overlappingRefs + " of " + refs.size() + " refs, nothing was merged. "
+						+ "We can only merge non-overlapping trees, so make sure the "
+						+ "repositories have been prepared for that. Overlapping paths:" + report);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while validating");
+		} catch (ExecutionException e) {
+			throw rethrow(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<String> findOverlaps(RefToValidate ref,
+			Map<List<Object>, List<String>> overlapsByTrees, ObjectParser parser)
+			throws IOException {
+		Map<SubtreeConfig, ObjectId> resolvedRefs = refIndex.resolve(ref.originalPrefix,
+				ref.name);
+		if (isUnchanged(ref.refName, resolvedRefs)) {
+			return Collections.emptyList();
+		}
+		Map<SubtreeConfig, RevCommit> parentCommits = new LinkedHashMap<>();
+		for (Map.Entry<SubtreeConfig, ObjectId> entry : resolvedRefs.entrySet()) {
+			parentCommits.put(entry.getKey(), parseCommit(parser, ref.originalPrefix,
+					ref.name, entry.getKey(), entry.getValue()));
+		}
+		List<Object> treeKey = MergeCache.treeKey(parentCommits);
+		List<String> overlaps = overlapsByTrees.get(treeKey);
+		if (overlaps == null) {
+			SubtreeMerger subtreeMerger = new SubtreeMerger(repository, parser.getReader(), null,
+					mergeCache, statistics);
+			overlaps = subtreeMerger.findOverlaps(parentCommits);
+			overlapsByTrees.put(treeKey, overlaps);
+		}
+		return overlaps;
+	}
+
+	/**
+	 * @return the cause of the exception, to be thrown if it is unchecked
+	 */
+	private static IOException rethrow(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IOException(cause);
+	}
+
+	/**
+	 * Reports the merged ref of the result and then drops it.
+	 */
+	private RefMergeResult report(RefMergeResult result) {
+		report(result.mergedRef);
+		result.mergedRef = null;
+		return result;
+	}
+
+	private void report(MergedRef mergedRef) {
+		mergedRefCount++;
+		if (!mergedRef.isComplete()) {
+			incompleteRefCount++;
+		}
+		if (mergedRefListener != null) {
+			mergedRefListener.accept(mergedRef);
+		}
+	}
+
+	private RefMergeResult merge(RefMerge refMerge, InserterPool inserters, ParserPool parsers)
+			throws IOException {
+		long start = System.nanoTime();
+		RefMergeResult result = refMerge.merge(inserters.get(), parsers.get());
+		statistics.addRefTiming(result.mergedRef.getRefType(), result.mergedRef.getRefName(),
+				start);
+		return result;
+	}
+
+	/**
+	 * Points the refs to the merge results and deletes refs that were merged
+	 * in the previous run but no longer exist in any input repository.
+	 */
+	private void createMergedRefs(List<RefMergeResult> mergeResults) throws IOException {
+		Set<String> refNames = new LinkedHashSet<>();
+		for (RefMergeResult result : mergeResults) {
+			refNames.add(result.refName);
+		}
+		List<MergeState.Entry> staleEntries = new ArrayList<>();
+		for (MergeState.Entry entry : previousState.getEntries()) {
+			if (!refNames.contains(entry.getRefName())) {
+				staleEntries.add(entry);
+			}
+		}
+
+		List<String> lookupNames = new ArrayList<>(refNames);
+		for (MergeState.Entry entry : staleEntries) {
+			lookupNames.add(entry.getRefName());
+		}
+		Map<String, Ref> existingRefs = repository.getRefDatabase()
+				.exactRef(lookupNames.toArray(new String[0]));
+
+		BatchRefUpdate batch = newBatchUpdate();
+		for (RefMergeResult result : mergeResults) {
+			ObjectId oldId = getObjectId(existingRefs.get(result.refName));
+			if (result.mustBeNew && previousState.get(result.refName) == null) {
+				// Don't overwrite tags that were not created by us
+				oldId = ObjectId.zeroId();
+			}
+			if (!oldId.equals(result.objectId)) {
+				batch.addCommand(new ReceiveCommand(oldId, result.objectId, result.refName));
+			}
+		}
+		for (MergeState.Entry entry : staleEntries) {
+			ObjectId oldId = getObjectId(existingRefs.get(entry.getRefName()));
+			if (oldId.equals(entry.getMergedId())) {
+				batch.addCommand(new ReceiveCommand(oldId, ObjectId.zeroId(), entry.getRefName(),
+						ReceiveCommand.Type.DELETE));
+			}
+		}
+		executeBatch(batch);
+	}
+
+	/**
+	 * Writes the merge commit (and tag) of a ref to the fast-import stream.
+	 */
+	private static void writeFastImport(FastImportWriter writer, RefMergeResult result)
+			throws IOException {
+		int mark = writer.writeCommit(result.refName, result.fastImportCommit);
+		if (result.referenceTag != null) {
+			// Named like the ref, as in the tag that is created directly,
+			// the tag object of an input repository may say otherwise
+			RevTag tag = result.referenceTag;
+			writer.writeTag(result.refName.substring(Constants.R_TAGS.length()), mark,
+					tag.getTaggerIdent(), tag.getFullMessage());
+		}
+	}
+
+	/**
+	 * Writes the deletion of the original refs to the fast-import stream, at
+	 * the end of it.
+	 */
+	private void writeFastImportDeletes(FastImportWriter writer) throws IOException {
+		for (Ref originalRef : getOriginalRefs()) {
+			writer.writeDelete(originalRef.getName());
+		}
+		writer.flush();
+	}
+
+	private static ObjectId getObjectId(Ref ref) {
+		if (ref == null || ref.getObjectId() == null) {
+			return ObjectId.zeroId();
+		}
+		return ref.getObjectId();
+	}
+
+	private static void addState(MergeState.Writer stateWriter, RefMergeResult result)
+			throws IOException {
+		stateWriter.add(new MergeState.Entry(result.refName, result.objectId, result.sourceIds));
+		result.sourceIds = null;
+	}
+
+	private File getStateFile() {
+		return new File(repository.getDirectory(), "merge-repos-state");
+	}
+
+	private Collection<Ref> getOriginalRefs() throws IOException {
+		Collection<Ref> refs = new ArrayList<>();
+		RefDatabase refDatabase = repository.getRefDatabase();
+		List<Ref> originalBranches = refDatabase.getRefsByPrefix("refs/heads/original/");
+		List<Ref> originalTags = refDatabase.getRefsByPrefix("refs/tags/original/");
+		refs.addAll(originalBranches);
+		refs.addAll(originalTags);
+		return refs;
+	}
+
+	private void deleteOriginalRefs() throws IOException {
+		BatchRefUpdate batch = newBatchUpdate();
+		for (Ref originalRef : getOriginalRefs()) {
+			batch.addCommand(new ReceiveCommand(originalRef.getObjectId(), ObjectId.zeroId(),
+					originalRef.getName(), ReceiveCommand.Type.DELETE));
+		}
+		executeBatch(batch);
+	}
+
+	/**
+	 * Checks out the main branch and then compacts the reftable (if any), so
+	 * that the update of HEAD ends up in the one compacted table too.
+	 */
+	private void checkOut() throws IOException, GitAPIException {
+		long start = System.nanoTime();
+		resetToBranch();
+		statistics.addPhase("checkout", start);
+		if (repository.getRefDatabase() instanceof FileReftableDatabase) {
+			start = System.nanoTime();
+			((FileReftableDatabase) repository.getRefDatabase()).compactFully();
+			statistics.addPhase("compactRefs", start);
+		}
+	}
+
+	private void convertToReftable() throws IOException {
+		Ref head = repository.exactRef(Constants.HEAD);
+		((FileRepository) repository).convertRefStorage(
+				ConfigConstants.CONFIG_REF_STORAGE_REFTABLE, false, false);
+		// The conversion drops HEAD when it points to an unborn branch
+		if (head != null && head.isSymbolic()) {
+			RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+			headUpdate.disableRefLog();
+			headUpdate.link(head.getTarget().getName());
+		}
 	}
 
 	private void resetToBranch() throws IOException, GitAPIException {
 		for (String name : Arrays.asList("main", "master")) {
 			Ref branch = repository.exactRef(Constants.R_HEADS + name);
 			if (branch != null) {
-				Git git = new Git(repository);
-				git.reset().setMode(ResetType.HARD).setRef(branch.getName()).call();
+				if (repository.isBare()) {
+					// Nothing to check out, only point HEAD to the branch
+					RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+					headUpdate.disableRefLog();
+					headUpdate.link(branch.getName());
+				} else {
+					Git git = new Git(repository);
+					git.reset().setMode(ResetType.HARD).setRef(branch.getName()).call();
+				}
 				break;
 			}
 		}
 	}
 
-	private MergedRef mergeBranch(String branch) throws IOException {
+	private RefMergeResult mergeBranch(String branch, ObjectInserter inserter,
+			ObjectParser parser) throws IOException {
 
-		Map<SubtreeConfig, ObjectId> resolvedRefs = resolveRefs(
-				"refs/heads/original/", branch);
+		Map<SubtreeConfig, ObjectId> resolvedRefs = refIndex.resolve(RefIndex.BRANCHES, branch);
+		String refName = Constants.R_HEADS + branch;
+		RefMergeResult unchangedResult = getUnchangedResult("branch", branch, refName,
+				resolvedRefs, false);
+		if (unchangedResult != null) {
+			return unchangedResult;
+		}
 
 		Map<SubtreeConfig, RevCommit> parentCommits = new LinkedHashMap<>();
-		try (RevWalk revWalk = new RevWalk(repository)) {
-			for (SubtreeConfig config : subtreeConfigs) {
-				ObjectId objectId = resolvedRefs.get(config);
-				if (objectId != null) {
-					RevCommit commit = revWalk.parseCommit(objectId);
-					parentCommits.put(config, commit);
-				}
+		for (SubtreeConfig config : subtreeConfigs) {
+			ObjectId objectId = resolvedRefs.get(config);
+			if (objectId != null) {
+				RevCommit commit = parseCommit(parser, RefIndex.BRANCHES, branch, config,
+						objectId);
+				parentCommits.put(config, commit);
 			}
 		}
 
 		MergedRef mergedRef = getMergedRef("branch", branch, parentCommits.keySet());
 
-		ObjectId mergeCommit = new SubtreeMerger(repository).createMergeCommit(parentCommits,
+		SubtreeMerger subtreeMerger = new SubtreeMerger(repository, parser.getReader(), inserter,
+				mergeCache, statistics);
+		if (fastImportOutput != null) {
+			FastImportCommit fastImportCommit = subtreeMerger.createFastImportCommit(
+					parentCommits, mergedRef.getMessage());
+			return new RefMergeResult(mergedRef, refName, fastImportCommit, null);
+		}
+		ObjectId mergeCommit = subtreeMerger.createMergeCommit(parentCommits,
 				mergedRef.getMessage());
 
-		RefUpdate refUpdate = repository.updateRef("refs/heads/" + branch);
-		refUpdate.setNewObjectId(mergeCommit);
-		refUpdate.update();
-
-		return mergedRef;
+		return new RefMergeResult(mergedRef, refName, mergeCommit, getSourceIds(resolvedRefs),
+				false);
 	}
 
-	private MergedRef mergeTag(String tagName) throws IOException {
-		Map<SubtreeConfig, ObjectId> resolvedRefs = resolveRefs(
-				"refs/tags/original/", tagName);
+	private RefMergeResult mergeTag(String tagName, ObjectInserter inserter,
+			ObjectParser parser) throws IOException {
+		Map<SubtreeConfig, ObjectId> resolvedRefs = refIndex.resolve(RefIndex.TAGS, tagName);
+		String refName = Constants.R_TAGS + tagName;
+		RefMergeResult unchangedResult = getUnchangedResult("tag", tagName, refName,
+				resolvedRefs, true);
+		if (unchangedResult != null) {
+			return unchangedResult;
+		}
 
 		// Annotated tag that should be used for creating the merged tag, null
 		// if only lightweight tags exist
 		RevTag referenceTag = null;
 		Map<SubtreeConfig, RevCommit> parentCommits = new LinkedHashMap<>();
 
-		try (RevWalk revWalk = new RevWalk(repository)) {
-			for (Map.Entry<SubtreeConfig, ObjectId> entry : resolvedRefs
-					.entrySet()) {
-				SubtreeConfig config = entry.getKey();
-				ObjectId objectId = entry.getValue();
-				RevCommit commit;
-				RevObject revObject = revWalk.parseAny(objectId);
-				if (revObject instanceof RevCommit) {
-					// Lightweight tag (ref points directly to commit)
-					commit = (RevCommit) revObject;
-				} else if (revObject instanceof RevTag) {
-					// Annotated tag (ref points to tag object with message,
-					// which in turn points to commit)
-					RevTag tag = (RevTag) revObject;
-					RevObject peeled = revWalk.peel(tag);
-					if (peeled instanceof RevCommit) {
-						commit = (RevCommit) peeled;
-
-						if (referenceTag == null) {
+		for (Map.Entry<SubtreeConfig, ObjectId> entry : resolvedRefs
+				.entrySet()) {
+			SubtreeConfig config = entry.getKey();
+			ObjectId objectId = entry.getValue();
+			RevCommit commit;
+			if (objectId.equals(refIndex.getPeeledId(RefIndex.TAGS, tagName, config))) {
+				// Lightweight tag according to the ref database, no need
+				// to look at the object type
+				parentCommits.put(config, parser.parseCommit(objectId));
+				continue;
+			}
+			RevObject revObject = parser.parseAny(objectId);
+			if (revObject instanceof RevCommit) {
+				// Lightweight tag (ref points directly to commit)
+				commit = (RevCommit) revObject;
+			} else if (revObject instanceof RevTag) {
+				// Annotated tag (ref points to tag object with message,
+				// which in turn points to commit)
+				RevTag tag = (RevTag) revObject;
+				RevObject peeled = parser.peel(tag);
+				if (peeled instanceof RevCommit) {
+					commit = (RevCommit) peeled;
+
+					if (referenceTag == null) {
+						referenceTag = tag;
+					} else {
+						// We already have one, but use the last (latest)
+						// tag as reference
+						PersonIdent referenceTagger = referenceTag.getTaggerIdent();
+						PersonIdent thisTagger = tag.getTaggerIdent();
+						if (thisTagger != null && referenceTagger != null
+								&& thisTagger.getWhen().after(referenceTagger.getWhen())) {
 							referenceTag = tag;
-						} else {
-							// We already have one, but use the last (latest)
-							// tag as reference
-							PersonIdent referenceTagger = referenceTag.getTaggerIdent();
-							PersonIdent thisTagger = tag.getTaggerIdent();
-							if (thisTagger != null && referenceTagger != null
-									&& thisTagger.getWhen().after(referenceTagger.getWhen())) {
-								referenceTag = tag;
-							}
 						}
-					} else {
-						String msg = "Peeled tag " + tag.getTagName()
-								+ " does not point to a commit, but to the following object: "
-								+ peeled;
-						throw new IllegalStateException(msg);
 					}
 				} else {
-					throw new IllegalArgumentException("Object with ID "
-							+ objectId + " has invalid type for a tag: "
-							+ revObject);
+					String msg = "Peeled tag " + tag.getTagName()
+							+ " does not point to a commit, but to the following object: "
+							+ peeled;
+					throw new IllegalStateException(msg);
 				}
-				parentCommits.put(config, commit);
+			} else {
+				throw new IllegalArgumentException("Object with ID "
+						+ objectId + " has invalid type for a tag: "
+						+ revObject);
 			}
+			parentCommits.put(config, commit);
 		}
 
 		MergedRef mergedRef = getMergedRef("tag", tagName, parentCommits.keySet());
-		ObjectId mergeCommit = new SubtreeMerger(repository).createMergeCommit(parentCommits,
+		SubtreeMerger subtreeMerger = new SubtreeMerger(repository, parser.getReader(), inserter,
+				mergeCache, statistics);
+		if (fastImportOutput != null) {
+			FastImportCommit fastImportCommit = subtreeMerger.createFastImportCommit(
+					parentCommits, mergedRef.getMessage());
+			return new RefMergeResult(mergedRef, refName, fastImportCommit, referenceTag);
+		}
+		ObjectId mergeCommit = subtreeMerger.createMergeCommit(parentCommits,
 				mergedRef.getMessage());
 
 		ObjectId objectToReference;
@@ -215,63 +1561,238 @@ public class RepoMerger {
 			tagBuilder.setMessage(referenceTag.getFullMessage());
 			tagBuilder.setTagger(referenceTag.getTaggerIdent());
 			tagBuilder.setObjectId(mergeCommit, Constants.OBJ_COMMIT);
-			try (ObjectInserter inserter = repository.newObjectInserter()) {
-				objectToReference = inserter.insert(tagBuilder);
-				inserter.flush();
-			}
+			objectToReference = inserter.insert(tagBuilder);
+			statistics.addObjectsInserted(1);
 		} else {
 			objectToReference = mergeCommit;
 		}
 
-		String ref = Constants.R_TAGS + tagName;
-		RefUpdate refUpdate = repository.updateRef(ref);
-		refUpdate.setExpectedOldObjectId(ObjectId.zeroId());
-		refUpdate.setNewObjectId(objectToReference);
-		Result result = refUpdate.update();
-		if (result != Result.NEW) {
-			throw new IllegalStateException("Creating tag ref " + ref + " for "
-					+ objectToReference + " failed with result " + result);
+		return new RefMergeResult(mergedRef, refName, objectToReference,
+				getSourceIds(resolvedRefs), true);
+	}
+
+	/**
+	 * @return the result of the previous run if the ref was merged from the
+	 *         same input refs, null otherwise
+	 */
+	private RefMergeResult getUnchangedResult(String refType, String name, String refName,
+			Map<SubtreeConfig, ObjectId> resolvedRefs, boolean mustBeNew) throws IOException {
+		if (!isUnchanged(refName, resolvedRefs)) {
+			return null;
 		}
+		MergeState.Entry entry = previousState.get(refName);
+		ObjectId[] sourceIds = getSourceIds(resolvedRefs);
+		unchangedRefCount.incrementAndGet();
+		MergedRef mergedRef = getMergedRef(refType, name, resolvedRefs.keySet());
+		return new RefMergeResult(mergedRef, refName, entry.getMergedId(), sourceIds, mustBeNew);
+	}
 
-		return mergedRef;
+	/**
+	 * @return whether the ref was merged from the same input refs in the
+	 *         previous run (and the result still exists)
+	 */
+	private boolean isUnchanged(String refName, Map<SubtreeConfig, ObjectId> resolvedRefs)
+			throws IOException {
+		MergeState.Entry entry = previousState.get(refName);
+		return entry != null && entry.hasSourceIds(getSourceIds(resolvedRefs))
+				&& repository.getObjectDatabase().has(entry.getMergedId());
 	}
 
-	private Collection<String> getRefSet(String prefix) throws IOException {
-		List<Ref> refs = repository.getRefDatabase().getRefsByPrefix(prefix);
-		TreeSet<String> result = new TreeSet<>();
-		for (Ref ref : refs) {
-			// full: refs/heads/original/repo-one/main
-			String full = ref.getName();
-			// unprefixed: repo-one/main
-			String unprefixed = full.substring(prefix.length());
-			// branch name: main
-			String branch = unprefixed.split("/", 2)[1];
-			result.add(branch);
+	private ObjectId[] getSourceIds(Map<SubtreeConfig, ObjectId> resolvedRefs) {
+		ObjectId[] sourceIds = new ObjectId[subtreeConfigs.size()];
+		for (int i = 0; i < sourceIds.length; i++) {
+			sourceIds[i] = resolvedRefs.get(subtreeConfigs.get(i));
 		}
-		return result;
+		return sourceIds;
+	}
+
+	/**
+	 * @return the fetched refs, read in one scan of the ref database
+	 *         (package-private for benchmarks)
+	 */
+	RefIndex readRefIndex() throws IOException {
+		return RefIndex.read(repository, subtreeConfigs, refFilter);
+	}
+
+	/**
+	 * @return the commit of the ref, using the peeled ID from the ref index
+	 *         if there is one instead of parsing an annotated tag
+	 */
+	private RevCommit parseCommit(ObjectParser parser, String prefix, String name,
+			SubtreeConfig config, ObjectId objectId) throws IOException {
+		ObjectId peeledId = refIndex.getPeeledId(prefix, name, config);
+		// Peels annotated tags otherwise
+		return parser.parseCommit(peeledId != null ? peeledId : objectId);
+	}
+
+	private MergedRef getMergedRef(String refType, String refName,
+			Set<SubtreeConfig> configsWithRef) {
+		BitSet presence = new BitSet(subtreeConfigs.size());
+		for (int i = 0; i < subtreeConfigs.size(); i++) {
+			if (configsWithRef.contains(subtreeConfigs.get(i))) {
+				presence.set(i);
+			}
+		}
+		return new MergedRef(refType, refName, subtreeConfigs, presence);
+	}
+
+	/**
+	 * @return a new atomic batch update without reflog, as the refs are
+	 *         created by a program and the reflog would only cost one more
+	 *         file write per ref
+	 */
+	private BatchRefUpdate newBatchUpdate() {
+		BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+		batch.setAtomic(true);
+		batch.setAllowNonFastForwards(true);
+		batch.disableRefLog();
+		return batch;
+	}
+
+	private void executeBatch(BatchRefUpdate batch) throws IOException {
+		if (batch.getCommands().isEmpty()) {
+			return;
+		}
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			batch.execute(revWalk, NullProgressMonitor.INSTANCE);
+		}
+
+		List<ReceiveCommand> failed = new ArrayList<>();
+		List<ReceiveCommand> aborted = new ArrayList<>();
+		for (ReceiveCommand command : batch.getCommands()) {
+			if (isAborted(command)) {
+				aborted.add(command);
+			} else if (command.getResult() != ReceiveCommand.Result.OK) {
+				failed.add(command);
+			}
+		}
+		if (failed.isEmpty() && aborted.isEmpty()) {
+			statistics.addRefsUpdated(batch.getCommands().size());
+			return;
+		}
+		if (failed.isEmpty()) {
+			// No cause recorded, so at least the refs
+			failed = aborted;
+			aborted = Collections.emptyList();
+		}
+
+		// The causes first, the batch is atomic so the other refs were aborted
+		StringBuilder summary = new StringBuilder();
+		summary.append("Updating ").append(failed.size()).append(" of ")
+				.append(batch.getCommands().size()).append(" refs failed");
+		if (!aborted.isEmpty()) {
+			summary.append(" (the other ").append(aborted.size())
+					.append(" were not updated either)");
+		}
+		summary.append(":");
+		for (ReceiveCommand command : failed.subList(0,
+				Math.min(failed.size(), MAX_REPORTED_REF_FAILURES))) {
+			summary.append("\n\t").append(command.getRefName()).append(": ")
+					.append(command.getResult());
+			if (command.getMessage() != null) {
+				summary.append(" (").append(command.getMessage()).append(")");
+			}
+		}
+		if (failed.size() > MAX_REPORTED_REF_FAILURES) {
+			summary.append("\n\t... and ").append(failed.size() - MAX_REPORTED_REF_FAILURES)
+					.append(" more");
+		}
+		throw new IllegalStateException(summary.toString());
 	}
 
-	private Map<SubtreeConfig, ObjectId> resolveRefs(String refPrefix,
-			String name) throws IOException {
-		Map<SubtreeConfig, ObjectId> result = new LinkedHashMap<>();
+	private static boolean isAborted(ReceiveCommand command) {
+		return command.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED
+				|| command.getResult() == ReceiveCommand.Result.REJECTED_OTHER_REASON
+						&& JGitText.get().transactionAborted.equals(command.getMessage());
+	}
+
+	private long getPackSize() {
+		File[] files = ((ObjectDirectory) repository.getObjectDatabase()).getPackDirectory()
+				.listFiles();
+		long size = 0;
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	private static void checkUniqueRemoteNames(List<SubtreeConfig> subtreeConfigs) {
+		Set<String> remoteNames = new LinkedHashSet<>();
 		for (SubtreeConfig config : subtreeConfigs) {
-			String repositoryName = config.getRemoteName();
-			String remoteBranch = refPrefix + repositoryName + "/" + name;
-			ObjectId objectId = repository.resolve(remoteBranch);
-			if (objectId != null) {
-				result.put(config, objectId);
+			if (!remoteNames.add(config.getRemoteName())) {
+				throw new IllegalArgumentException("Multiple repositories have the name "
+						+ config.getRemoteName() + ", their refs would overwrite each other");
 			}
 		}
-		return result;
 	}
 
-	private MergedRef getMergedRef(String refType, String refName,
-			Set<SubtreeConfig> configsWithRef) {
-		LinkedHashSet<SubtreeConfig> configsWithoutRef = new LinkedHashSet<>(
-				subtreeConfigs);
-		configsWithoutRef.removeAll(configsWithRef);
+	private static class RefToValidate {
+		private final String refType;
+		private final String name;
+		private final String originalPrefix;
+		private final String refName;
+
+		RefToValidate(String refType, String name, String originalPrefix, String refName) {
+			this.refType = refType;
+			this.name = name;
+			this.originalPrefix = originalPrefix;
+			this.refName = refName;
+		}
+	}
+
+	private interface RemoteCall<T> {
+		T call(SubtreeConfig config) throws GitAPIException, IOException;
+	}
+
+	private interface RefMerge {
+		RefMergeResult merge(ObjectInserter inserter, ObjectParser parser) throws IOException;
+	}
 
-		return new MergedRef(refType, refName, configsWithRef, configsWithoutRef);
+	private interface ResultHandler {
+		void handle(RefMergeResult result) throws IOException;
 	}
 
+	/**
+	 * A merge commit (or tag) that has been created but not yet been
+	 * referenced by a ref. Tag refs must not exist yet (unless created by a
+	 * previous run), branch refs are overwritten.
+	 * <p>
+	 * For a fast-import stream, the merge commit is not created but described
+	 * by a {@link FastImportCommit} (plus the tag to copy for annotated tags).
+	 */
+	private static class RefMergeResult {
+		// Dropped once reported
+		private MergedRef mergedRef;
+		private final String refName;
+		private final ObjectId objectId;
+		// Dropped once written to the state
+		private ObjectId[] sourceIds;
+		private final boolean mustBeNew;
+		private final FastImportCommit fastImportCommit;
+		private final RevTag referenceTag;
+
+		RefMergeResult(MergedRef mergedRef, String refName, ObjectId objectId,
+				ObjectId[] sourceIds, boolean mustBeNew) {
+			this.mergedRef = mergedRef;
+			this.refName = refName;
+			this.objectId = objectId;
+			this.sourceIds = sourceIds;
+			this.mustBeNew = mustBeNew;
+			this.fastImportCommit = null;
+			this.referenceTag = null;
+		}
+
+		RefMergeResult(MergedRef mergedRef, String refName, FastImportCommit fastImportCommit,
+				RevTag referenceTag) {
+			this.mergedRef = mergedRef;
+			this.refName = refName;
+			this.objectId = null;
+			this.sourceIds = null;
+			this.mustBeNew = false;
+			this.fastImportCommit = fastImportCommit;
+			this.referenceTag = referenceTag;
+		}
+	}
 }
@@ -8,9 +8,30 @@ import org.eclipse.jgit.transport.URIish;
  */
 public class SubtreeConfig {
 
+	/**
+	 * What the fetch URI points to, determined by its file extension.
+	 */
+	public enum SourceType {
+		/** A repository, fetched with the protocol of the URI. */
+		REPOSITORY,
+		/** A file created by <code>git bundle</code> (.bundle), fetched from. */
+		BUNDLE,
+		/**
+		 * A local file written by <code>git fast-export</code>
+		 * (.git-fast-export or .fast-export), read directly into the output
+		 * repository.
+		 */
+		FAST_EXPORT
+	}
+
+	private static final String[] FAST_EXPORT_EXTENSIONS = { ".git-fast-export",
+			".fast-export" };
+	private static final String BUNDLE_EXTENSION = ".bundle";
+
 	private final String repositoryName;
 	private final URIish fetchUri;
 	private final String subtreeDirectory;
+	private final SourceType sourceType;
 
 	/**
 	 * @param subtreeDirectory
@@ -20,12 +41,31 @@ public class SubtreeConfig {
 	 * @param fetchUri
 	 *            the URI where the repository is located (a local one is
 	 *            preferred while experimenting with conversion, so that it does
-	 *            not have to be fetched multiple times)
+	 *            not have to be fetched multiple times), or of a bundle or
+	 *            fast-export file, see {@link SourceType}
 	 */
 	public SubtreeConfig(String subtreeDirectory, URIish fetchUri) {
 		this.subtreeDirectory = subtreeDirectory;
 		this.fetchUri = fetchUri;
-		this.repositoryName = fetchUri.getHumanishName();
+		String path = fetchUri.getPath() != null ? fetchUri.getPath() : "";
+		String name = fetchUri.getHumanishName();
+		SourceType type = path.endsWith(BUNDLE_EXTENSION) ? SourceType.BUNDLE
+				: SourceType.REPOSITORY;
+		for (String extension : FAST_EXPORT_EXTENSIONS) {
+			if (path.endsWith(extension)) {
+				type = SourceType.FAST_EXPORT;
+				name = name.substring(0, name.length() - extension.length());
+			}
+		}
+		if (type == SourceType.BUNDLE && name.endsWith(BUNDLE_EXTENSION)) {
+			name = name.substring(0, name.length() - BUNDLE_EXTENSION.length());
+		}
+		if (type == SourceType.FAST_EXPORT && fetchUri.getHost() != null) {
+			throw new IllegalArgumentException(
+					"Fast-export streams can only be read from local files: " + fetchUri);
+		}
+		this.sourceType = type;
+		this.repositoryName = name;
 		if (this.repositoryName.isEmpty()) {
 			throw new IllegalArgumentException(
 					"Could not determine repository name from fetch URI: " + fetchUri);
@@ -33,7 +73,7 @@ public class SubtreeConfig {
 	}
 
 	public String getRemoteName() {
-		return fetchUri.getHumanishName();
+		return repositoryName;
 	}
 
 	public URIish getFetchUri() {
@@ -43,4 +83,8 @@ public class SubtreeConfig {
 	public String getSubtreeDirectory() {
 		return subtreeDirectory;
 	}
+
+	public SourceType getSourceType() {
+		return sourceType;
+	}
 }
\ No newline at end of file
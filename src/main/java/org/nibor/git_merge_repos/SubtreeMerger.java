@@ -6,55 +6,173 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheBuilder;
-import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.Paths;
+import org.eclipse.jgit.util.RawParseUtils;
 
 /**
  * Merges the passed commit trees into one tree, adjusting directory structure
  * if necessary (depends on options from user).
+ * <p>
+ * The merged tree is built from the existing trees instead of from all the
+ * files in them. When each repository goes into its own directory, only the
+ * trees above these directories have to be written. Only where the contents of
+ * multiple repositories end up in the same directory (e.g. when all are merged
+ * into <code>"."</code>), the entries of that directory are merged, descending
+ * further only into subdirectories that exist in more than one repository.
  */
 public class SubtreeMerger {
 
 	private final Repository repository;
+	private final ObjectInserter inserter;
+	private final MergeCache mergeCache;
+	private final MergeStatistics statistics;
+	private final ObjectReader sharedReader;
 
-	public SubtreeMerger(Repository repository) {
+	/**
+	 * @param inserter
+	 *            the inserter for the new trees and commits, the caller is
+	 *            responsible for flushing it (can be null if only used for
+	 *            {@link #findOverlaps})
+	 * @param mergeCache
+	 *            the cache of already merged trees
+	 * @param statistics
+	 *            where to count the trees walked, entries copied and objects
+	 *            inserted
+	 */
+	public SubtreeMerger(Repository repository, ObjectInserter inserter, MergeCache mergeCache,
+			MergeStatistics statistics) {
+		this(repository, null, inserter, mergeCache, statistics);
+	}
+
+	/**
+	 * Like {@link #SubtreeMerger(Repository, ObjectInserter, MergeCache,
+	 * MergeStatistics)}, but reads the trees with the passed reader instead of
+	 * opening a new one for each merge.
+	 *
+	 * @param reader
+	 *            the reader to use, which stays open (null for a new one each
+	 *            time)
+	 */
+	SubtreeMerger(Repository repository, ObjectReader reader, ObjectInserter inserter,
+			MergeCache mergeCache, MergeStatistics statistics) {
 		this.repository = repository;
+		this.sharedReader = reader;
+		this.inserter = inserter;
+		this.mergeCache = mergeCache;
+		this.statistics = statistics;
 	}
 
 	public ObjectId createMergeCommit(Map<SubtreeConfig, RevCommit> parentCommits, String message)
 			throws IOException {
-		PersonIdent latestIdent = getLatestPersonIdent(parentCommits.values());
-		DirCache treeDirCache = createTreeDirCache(parentCommits, message);
 		List<? extends ObjectId> parentIds = new ArrayList<>(parentCommits.values());
-		try (ObjectInserter inserter = repository.newObjectInserter()) {
-			ObjectId treeId = treeDirCache.writeTree(inserter);
+		List<Object> treeKey = MergeCache.treeKey(parentCommits);
+		ObjectId treeId = mergeCache.getTree(treeKey);
+		if (treeId == null) {
+			ObjectReader reader = openReader();
+			try {
+				treeId = writeTree(createDirectory(parentCommits), reader, message);
+			} finally {
+				closeReader(reader);
+			}
+			mergeCache.putTree(treeKey, treeId);
+		}
+
+		PersonIdent ident = getMergeIdent(parentCommits);
+		CommitBuilder commitBuilder = new CommitBuilder();
+		commitBuilder.setTreeId(treeId);
+		commitBuilder.setAuthor(ident);
+		commitBuilder.setCommitter(ident);
+		commitBuilder.setMessage(message);
+		commitBuilder.setParentIds(parentIds);
+		ObjectId mergeCommit = inserter.insert(commitBuilder);
+		statistics.addObjectsInserted(1);
+		return mergeCommit;
+	}
+
+	/**
+	 * Like {@link #createMergeCommit(Map, String)}, but instead of writing the
+	 * merged tree and commit, returns what is needed to write the commit as
+	 * part of a fast-import stream. Nothing is inserted.
+	 */
+	FastImportCommit createFastImportCommit(Map<SubtreeConfig, RevCommit> parentCommits,
+			String message) throws IOException {
+		List<FastImportCommit.FileModify> fileModifies = new ArrayList<>();
+		ObjectReader reader = openReader();
+		try {
+			addFileModifies(createDirectory(parentCommits), reader, message, fileModifies);
+		} finally {
+			closeReader(reader);
+		}
+		List<ObjectId> parentIds = new ArrayList<>(parentCommits.values());
+		return new FastImportCommit(parentIds, getMergeIdent(parentCommits), message,
+				fileModifies);
+	}
 
-			PersonIdent repositoryUser = new PersonIdent(repository);
-			PersonIdent ident = new PersonIdent(repositoryUser, latestIdent.getWhen().getTime(),
-					latestIdent.getTimeZoneOffset());
-			CommitBuilder commitBuilder = new CommitBuilder();
-			commitBuilder.setTreeId(treeId);
-			commitBuilder.setAuthor(ident);
-			commitBuilder.setCommitter(ident);
-			commitBuilder.setMessage(message);
-			commitBuilder.setParentIds(parentIds);
-			ObjectId mergeCommit = inserter.insert(commitBuilder);
-			inserter.flush();
-			return mergeCommit;
+	/**
+	 * Checks whether the trees of the parents can be merged, without writing
+	 * anything. Like merging, only the entries of directories that multiple
+	 * repositories have content in are compared, descending only into
+	 * subdirectories that exist in more than one of them.
+	 *
+	 * @return the paths that exist in more than one repository, empty if the
+	 *         trees can be merged
+	 */
+	List<String> findOverlaps(Map<SubtreeConfig, RevCommit> parentCommits) throws IOException {
+		List<String> overlaps = new ArrayList<>();
+		ObjectReader reader = openReader();
+		try {
+			findOverlaps(createDirectory(parentCommits), reader, overlaps);
+		} finally {
+			closeReader(reader);
 		}
+		return overlaps;
+	}
+
+	private ObjectReader openReader() {
+		return sharedReader != null ? sharedReader : repository.newObjectReader();
+	}
+
+	private void closeReader(ObjectReader reader) {
+		if (reader != sharedReader) {
+			reader.close();
+		}
+	}
+
+	private void findOverlaps(Directory directory, ObjectReader reader, List<String> overlaps)
+			throws IOException {
+		if (directory.isSingleTree()) {
+			return;
+		}
+		for (TreeEntry entry : getEntries(directory, reader, overlaps)) {
+			if (entry.subdirectory != null) {
+				findOverlaps(entry.subdirectory, reader, overlaps);
+			}
+		}
+	}
+
+	private PersonIdent getMergeIdent(Map<SubtreeConfig, RevCommit> parentCommits) {
+		PersonIdent latestIdent = getLatestPersonIdent(parentCommits.values());
+		PersonIdent repositoryUser = new PersonIdent(repository);
+		return new PersonIdent(repositoryUser, latestIdent.getWhen().getTime(),
+				latestIdent.getTimeZoneOffset());
 	}
 
 	private PersonIdent getLatestPersonIdent(Collection<RevCommit> commits) {
@@ -69,64 +187,182 @@ public class SubtreeMerger {
 		return latest;
 	}
 
-	private DirCache createTreeDirCache(Map<SubtreeConfig, RevCommit> parentCommits,
+	private static Directory createDirectory(Map<SubtreeConfig, RevCommit> parentCommits) {
+		Directory root = new Directory(new byte[0], new byte[0]);
+		for (Map.Entry<SubtreeConfig, RevCommit> entry : parentCommits.entrySet()) {
+			String directory = entry.getKey().getSubtreeDirectory();
+			RevCommit parentCommit = entry.getValue();
+			root.getSubdirectory(directory).trees.add(parentCommit.getTree());
+		}
+		return root;
+	}
+
+	private ObjectId writeTree(Directory directory, ObjectReader reader, String commitMessage)
+			throws IOException {
+		if (directory.isSingleTree()) {
+			// Only one repository has content here, use its tree as-is
+			return directory.trees.get(0);
+		}
+
+		TreeFormatter formatter = new TreeFormatter();
+		for (TreeEntry entry : getEntries(directory, reader, commitMessage)) {
+			ObjectId objectId = entry.objectId;
+			if (entry.subdirectory != null) {
+				objectId = writeTree(entry.subdirectory, reader, commitMessage);
+			}
+			formatter.append(entry.name, entry.mode, objectId);
+		}
+		statistics.addObjectsInserted(1);
+		return formatter.insertTo(inserter);
+	}
+
+	/**
+	 * Adds the existing trees and files that make up the merged directory,
+	 * with their full path. Like {@link #writeTree}, but without writing the
+	 * merged trees.
+	 */
+	private void addFileModifies(Directory directory, ObjectReader reader, String commitMessage,
+			List<FastImportCommit.FileModify> fileModifies) throws IOException {
+		if (directory.isSingleTree()) {
+			fileModifies.add(new FastImportCommit.FileModify(directory.path, FileMode.TREE,
+					directory.trees.get(0)));
+			return;
+		}
+
+		for (TreeEntry entry : getEntries(directory, reader, commitMessage)) {
+			if (entry.subdirectory != null) {
+				addFileModifies(entry.subdirectory, reader, commitMessage, fileModifies);
+			} else {
+				fileModifies.add(new FastImportCommit.FileModify(
+						directory.getEntryPath(entry.name), entry.mode, entry.objectId));
+			}
+		}
+	}
+
+	/**
+	 * @return the sorted entries of the merged directory, subdirectories that
+	 *         need merging themselves have no object ID yet
+	 * @throws IllegalStateException
+	 *             if the trees overlap in the directory
+	 */
+	private List<TreeEntry> getEntries(Directory directory, ObjectReader reader,
 			String commitMessage) throws IOException {
+		List<String> overlaps = new ArrayList<>();
+		List<TreeEntry> entries = getEntries(directory, reader, overlaps);
+		if (!overlaps.isEmpty()) {
+			throw overlapException(overlaps.get(0), commitMessage);
+		}
+		return entries;
+	}
+
+	/**
+	 * Like {@link #getEntries(Directory, ObjectReader, String)}, but adds the
+	 * paths where the trees overlap to the passed list instead of failing.
+	 * For an overlap, only the entry of the first tree is returned.
+	 */
+	private List<TreeEntry> getEntries(Directory directory, ObjectReader reader,
+			List<String> overlaps) throws IOException {
+		List<TreeEntry> entries = new ArrayList<>();
+		if (!directory.trees.isEmpty()) {
+			mergeTreeEntries(directory, reader, overlaps, entries);
+		}
+		for (Directory subdirectory : directory.subdirectories.values()) {
+			entries.add(new TreeEntry(subdirectory));
+		}
+		entries.sort(TreeEntry::compareTo);
+
+		// A file in one repository can have the same name as a directory in
+		// another one, these are not sorted next to each other
+		Set<String> names = new HashSet<>();
+		for (TreeEntry entry : entries) {
+			String path = directory.getEntryPathString(entry.name);
+			if (!names.add(path)) {
+				overlaps.add(path);
+			}
+		}
+		return entries;
+	}
 
-		try (TreeWalk treeWalk = new TreeWalk(repository)) {
-			treeWalk.setRecursive(true);
-			addTrees(parentCommits, treeWalk);
+	/**
+	 * Adds the entries of the trees of the directory to the passed list.
+	 * Subdirectories that exist in multiple trees (or that other repositories
+	 * are merged into) are added to the subdirectories of the directory
+	 * instead, so that they are merged themselves.
+	 */
+	private void mergeTreeEntries(Directory directory, ObjectReader reader,
+			List<String> overlaps, List<TreeEntry> entries) throws IOException {
+		long copied = 0;
+		try (TreeWalk treeWalk = new TreeWalk(reader)) {
+			for (ObjectId tree : directory.trees) {
+				treeWalk.addTree(new CanonicalTreeParser(directory.path, reader, tree));
+			}
+			statistics.addTreesWalked(directory.trees.size());
 
-			DirCacheBuilder builder = DirCache.newInCore().builder();
 			while (treeWalk.next()) {
-				AbstractTreeIterator iterator = getSingleTreeIterator(treeWalk, commitMessage);
-				if (iterator == null) {
-					throw new IllegalStateException(
-							"Tree walker did not return a single tree (should not happen): "
-									+ treeWalk.getPathString());
+				byte[] name = getName(treeWalk);
+				String nameString = treeWalk.getNameString();
+				Directory subdirectory = directory.subdirectories.get(nameString);
+				boolean allTrees = true;
+				int count = 0;
+				for (int i = 0; i < treeWalk.getTreeCount(); i++) {
+					if (!treeWalk.getFileMode(i).equals(FileMode.MISSING)) {
+						count++;
+						allTrees &= treeWalk.getFileMode(i).equals(FileMode.TREE);
+					}
+				}
+
+				if (allTrees && (count > 1 || subdirectory != null)) {
+					if (subdirectory == null) {
+						subdirectory = new Directory(name, directory.getEntryPath(name));
+						directory.subdirectories.put(nameString, subdirectory);
+					}
+					for (int i = 0; i < treeWalk.getTreeCount(); i++) {
+						if (!treeWalk.getFileMode(i).equals(FileMode.MISSING)) {
+							subdirectory.trees.add(treeWalk.getObjectId(i));
+						}
+					}
+				} else {
+					AbstractTreeIterator iterator = getSingleTreeIterator(treeWalk, overlaps);
+					if (iterator == null) {
+						throw new IllegalStateException(
+								"Tree walker did not return a single tree (should not happen): "
+										+ treeWalk.getPathString());
+					}
+					entries.add(new TreeEntry(name, iterator.getEntryFileMode(),
+							iterator.getEntryObjectId()));
+					copied++;
 				}
-				byte[] path = Arrays.copyOf(iterator.getEntryPathBuffer(),
-						iterator.getEntryPathLength());
-				DirCacheEntry entry = new DirCacheEntry(path);
-				entry.setFileMode(iterator.getEntryFileMode());
-				entry.setObjectId(iterator.getEntryObjectId());
-				builder.add(entry);
 			}
-			builder.finish();
-			return builder.getDirCache();
 		}
+		statistics.addEntriesCopied(copied);
 	}
 
-	private void addTrees(Map<SubtreeConfig, RevCommit> parentCommits, TreeWalk treeWalk)
-			throws IOException {
-		for (Map.Entry<SubtreeConfig, RevCommit> entry : parentCommits.entrySet()) {
-			String directory = entry.getKey().getSubtreeDirectory();
-			RevCommit parentCommit = entry.getValue();
-			if (".".equals(directory)) {
-				treeWalk.addTree(parentCommit.getTree());
-			} else {
-				byte[] prefix = directory.getBytes(StandardCharsets.UTF_8);
-				CanonicalTreeParser treeParser = new CanonicalTreeParser(prefix,
-						treeWalk.getObjectReader(), parentCommit.getTree());
-				treeWalk.addTree(treeParser);
+	private static byte[] getName(TreeWalk treeWalk) {
+		for (int i = 0; i < treeWalk.getTreeCount(); i++) {
+			AbstractTreeIterator it = treeWalk.getTree(i, AbstractTreeIterator.class);
+			if (it != null) {
+				byte[] name = new byte[it.getNameLength()];
+				it.getName(name, 0);
+				return name;
 			}
 		}
+		throw new IllegalStateException("Tree walker has no current entry (should not happen): "
+				+ treeWalk.getPathString());
 	}
 
-	private AbstractTreeIterator getSingleTreeIterator(TreeWalk treeWalk, String commitMessage) {
+	/**
+	 * @return the iterator of the first tree that has the current entry, if
+	 *         other trees have it too, its path is added to the overlaps
+	 */
+	private AbstractTreeIterator getSingleTreeIterator(TreeWalk treeWalk, List<String> overlaps) {
 		AbstractTreeIterator result = null;
 		int treeCount = treeWalk.getTreeCount();
 		for (int i = 0; i < treeCount; i++) {
 			AbstractTreeIterator it = treeWalk.getTree(i, AbstractTreeIterator.class);
 			if (it != null) {
 				if (result != null) {
-					String msg = "Trees of repositories overlap in path '"
-							+ it.getEntryPathString()
-							+ "'. "
-							+ "We can only merge non-overlapping trees, "
-							+ "so make sure the repositories have been prepared for that. "
-							+ "One possible way is to process each repository to move the root to a subdirectory first.\n"
-							+ "Current commit:\n" + commitMessage;
-					throw new IllegalStateException(msg);
+					overlaps.add(it.getEntryPathString());
+					break;
 				} else {
 					result = it;
 				}
@@ -134,4 +370,93 @@ public class SubtreeMerger {
 		}
 		return result;
 	}
+
+	private static IllegalStateException overlapException(String path, String commitMessage) {
+		String msg = "Trees of repositories overlap in path '"
+				+ path
+				+ "'. "
+				+ "We can only merge non-overlapping trees, "
+				+ "so make sure the repositories have been prepared for that. "
+				+ "One possible way is to process each repository to move the root to a subdirectory first.\n"
+				+ "Current commit:\n" + commitMessage;
+		return new IllegalStateException(msg);
+	}
+
+	/**
+	 * A directory of the merged tree, with the trees of the repositories that
+	 * have content in it and the subdirectories that need merging.
+	 */
+	private static class Directory {
+		private final byte[] name;
+		private final byte[] path;
+		private final List<ObjectId> trees = new ArrayList<>();
+		private final Map<String, Directory> subdirectories = new LinkedHashMap<>();
+
+		Directory(byte[] name, byte[] path) {
+			this.name = name;
+			this.path = path;
+		}
+
+		boolean isSingleTree() {
+			return trees.size() == 1 && subdirectories.isEmpty();
+		}
+
+		Directory getSubdirectory(String relativePath) {
+			Directory directory = this;
+			for (String component : relativePath.split("/")) {
+				if (component.isEmpty() || component.equals(".")) {
+					continue;
+				}
+				Directory subdirectory = directory.subdirectories.get(component);
+				if (subdirectory == null) {
+					byte[] name = component.getBytes(StandardCharsets.UTF_8);
+					subdirectory = new Directory(name, directory.getEntryPath(name));
+					directory.subdirectories.put(component, subdirectory);
+				}
+				directory = subdirectory;
+			}
+			return directory;
+		}
+
+		byte[] getEntryPath(byte[] entryName) {
+			if (path.length == 0) {
+				return entryName;
+			}
+			byte[] entryPath = Arrays.copyOf(path, path.length + 1 + entryName.length);
+			entryPath[path.length] = '/';
+			System.arraycopy(entryName, 0, entryPath, path.length + 1, entryName.length);
+			return entryPath;
+		}
+
+		String getEntryPathString(byte[] entryName) {
+			return RawParseUtils.decode(getEntryPath(entryName));
+		}
+	}
+
+	private static class TreeEntry implements Comparable<TreeEntry> {
+		private final byte[] name;
+		private final FileMode mode;
+		private final ObjectId objectId;
+		private final Directory subdirectory;
+
+		TreeEntry(byte[] name, FileMode mode, ObjectId objectId) {
+			this.name = name;
+			this.mode = mode;
+			this.objectId = objectId;
+			this.subdirectory = null;
+		}
+
+		TreeEntry(Directory subdirectory) {
+			this.name = subdirectory.name;
+			this.mode = FileMode.TREE;
+			this.objectId = null;
+			this.subdirectory = subdirectory;
+		}
+
+		@Override
+		public int compareTo(TreeEntry other) {
+			return Paths.compare(name, 0, name.length, mode.getBits(), other.name, 0,
+					other.name.length, other.mode.getBits());
+		}
+	}
 }
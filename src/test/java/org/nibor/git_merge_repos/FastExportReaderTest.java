@@ -0,0 +1,254 @@
+package org.nibor.git_merge_repos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FastExportReaderTest {
+
+	private static final String COMMITTER = "committer C O Mitter <c@example.com> 1700000001 +0100\n";
+
+	private InMemoryRepository repository;
+
+	@BeforeEach
+	public void setUp() {
+		repository = new InMemoryRepository(new DfsRepositoryDescription("test"));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		repository.close();
+	}
+
+	@Test
+	public void sameIdsAsFastImport() throws IOException {
+		// The IDs are the ones git fast-import creates for this stream
+		Map<String, ObjectId> refs = read("blob\n"
+				+ "mark :1\n"
+				+ "data 6\n"
+				+ "hello\n"
+				+ "\n"
+				+ "commit refs/heads/main\n"
+				+ "mark :2\n"
+				+ "author A U Thor <a@example.com> 1700000000 +0100\n"
+				+ COMMITTER
+				+ "data 8\n"
+				+ "Initial\n"
+				+ "\n"
+				+ "M 100644 :1 \"dir with space/a\\tb\\\"c\\303\\244\"\n"
+				+ "\n"
+				+ "tag v1\n"
+				+ "from :2\n"
+				+ "tagger T Agger <t@example.com> 1700000002 +0100\n"
+				+ "data 8\n"
+				+ "Version\n"
+				+ "\n");
+
+		assertEquals(ObjectId.fromString("ea840bf3761b28573f3a8ff2d88d57b9f762799c"),
+				refs.get("refs/heads/main"));
+		assertEquals(ObjectId.fromString("f06586a6ce457f010e0c955ce05a63eca60d9f6b"),
+				refs.get("refs/tags/v1"));
+	}
+
+	@Test
+	public void quotedPaths() throws IOException {
+		Map<String, ObjectId> refs = read(commit("refs/heads/main", null,
+				"M 644 inline \"with space/a\\tb\\\"c\\\\d\"\n" + data("one")
+						+ "M 644 inline \"\\303\\244\\n\"\n" + data("two")
+						+ "M 644 inline unquoted path\n" + data("three")));
+
+		ObjectId main = refs.get("refs/heads/main");
+		assertEquals("one", readFile(main, "with space/a\tb\"c\\d"));
+		// The octal escapes are the bytes of the UTF-8 name
+		assertEquals("two", readFile(main, "ä\n"));
+		assertEquals("three", readFile(main, "unquoted path"));
+	}
+
+	@Test
+	public void renameAndCopy() throws IOException {
+		Map<String, ObjectId> refs = read(commit("refs/heads/main", null,
+				"M 644 inline dir/a\n" + data("a")
+						+ "M 644 inline dir/b\n" + data("b")
+						+ "M 644 inline c\n" + data("c"))
+				+ commit("refs/heads/main", null,
+						"R dir/a \"renamed a\"\n"
+								+ "C \"renamed a\" copied\n"
+								+ "C dir \"copied dir\"\n"
+								+ "R c dir/c\n"));
+
+		ObjectId main = refs.get("refs/heads/main");
+		assertNull(readFile(main, "dir/a"));
+		assertEquals("a", readFile(main, "renamed a"));
+		assertEquals("a", readFile(main, "copied"));
+		assertEquals("b", readFile(main, "copied dir/b"));
+		assertEquals("c", readFile(main, "dir/c"));
+		assertNull(readFile(main, "c"));
+	}
+
+	@Test
+	public void deleteAll() throws IOException {
+		Map<String, ObjectId> refs = read(commit("refs/heads/main", null,
+				"M 644 inline a\n" + data("a") + "M 644 inline dir/b\n" + data("b"))
+				+ commit("refs/heads/main", null,
+						"deleteall\n" + "M 644 inline c\n" + data("c")));
+
+		ObjectId main = refs.get("refs/heads/main");
+		assertNull(readFile(main, "a"));
+		assertNull(readFile(main, "dir/b"));
+		assertEquals("c", readFile(main, "c"));
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			assertEquals(1, revWalk.parseCommit(main).getParentCount());
+		}
+	}
+
+	@Test
+	public void annotatedTag() throws IOException {
+		Map<String, ObjectId> refs = read(commit("refs/heads/main", ":1",
+				"M 644 inline a\n" + data("a"))
+				+ "tag v1.0\n"
+				+ "from :1\n"
+				+ "tagger T Agger <t@example.com> 1700000002 +0100\n"
+				+ data("Release"));
+
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			RevTag tag = revWalk.parseTag(refs.get("refs/tags/v1.0"));
+			assertEquals("v1.0", tag.getTagName());
+			assertEquals(Constants.OBJ_COMMIT, tag.getObject().getType());
+			assertEquals(refs.get("refs/heads/main"), tag.getObject());
+			assertEquals("Release", tag.getFullMessage());
+		}
+	}
+
+	@Test
+	public void delimitedData() throws IOException {
+		Map<String, ObjectId> refs = read("commit refs/heads/main\n"
+				+ COMMITTER
+				+ "data <<EOT\n"
+				+ "Message\n"
+				+ "EOT\n"
+				+ "M 644 inline a\n"
+				+ data("a"));
+
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			RevCommit commit = revWalk.parseCommit(refs.get("refs/heads/main"));
+			assertEquals("Message\n", commit.getFullMessage());
+		}
+	}
+
+	@Test
+	public void unsupportedCommand() {
+		assertError("Unsupported command in fast-export stream: ls a", "ls a\n");
+	}
+
+	@Test
+	public void commitWithoutCommitter() {
+		assertError("Commit on refs/heads/main without committer",
+				"commit refs/heads/main\n" + data("Message"));
+	}
+
+	@Test
+	public void invalidFileChange() {
+		assertError("Invalid file change in fast-export stream: M 644",
+				commit("refs/heads/main", null, "M 644\n"));
+		assertError("Invalid copy or rename in fast-export stream: a",
+				commit("refs/heads/main", null, "R a\n"));
+		assertError("Invalid copy or rename in fast-export stream: \"a b",
+				commit("refs/heads/main", null, "C \"a b\n"));
+		assertError("Path not found in fast-export stream: R a b",
+				commit("refs/heads/main", null, "R a b\n"));
+		assertError("Unsupported file mode in fast-export stream: 600",
+				commit("refs/heads/main", null, "M 600 inline a\n" + data("a")));
+	}
+
+	@Test
+	public void invalidPath() {
+		assertError("Invalid quoted path in fast-export stream: \"a\\\"",
+				commit("refs/heads/main", null, "M 644 inline \"a\\\"\n" + data("a")));
+		assertError("Empty path in fast-export stream",
+				commit("refs/heads/main", null, "M 644 inline \n" + data("a")));
+	}
+
+	@Test
+	public void invalidMark() {
+		assertError("Invalid mark in fast-export stream: x", "blob\nmark :x\n" + data("a"));
+		assertError("Unknown mark in fast-export stream: :2",
+				commit("refs/heads/main", null, "M 644 :2 a\n"));
+	}
+
+	@Test
+	public void invalidData() {
+		assertError("Invalid data in fast-export stream: data -1", "blob\ndata -1\n");
+		assertError("Invalid data in fast-export stream: data x", "blob\ndata x\n");
+		assertError("Expected data with a byte count in fast-export stream: data <<EOT",
+				"blob\ndata <<EOT\na\nEOT\n");
+		assertError("Fast-export stream ended before data", "blob\n");
+	}
+
+	@Test
+	public void truncatedData() {
+		assertError("Fast-export stream ended within data", "blob\ndata 10\nabc");
+		assertError("Fast-export stream ended within data",
+				"commit refs/heads/main\n" + COMMITTER + "data 10\nabc");
+		assertError("Fast-export stream ended within data",
+				"commit refs/heads/main\n" + COMMITTER + "data <<EOT\nabc\n");
+	}
+
+	private Map<String, ObjectId> read(String stream) throws IOException {
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			Map<String, ObjectId> refs = new FastExportReader(inserter)
+					.read(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)));
+			inserter.flush();
+			return refs;
+		}
+	}
+
+	private void assertError(String message, String stream) {
+		IOException e = assertThrows(IOException.class, () -> read(stream));
+		assertEquals(message, e.getMessage());
+	}
+
+	private String readFile(ObjectId commitId, String path) throws IOException {
+		try (RevWalk revWalk = new RevWalk(repository);
+				TreeWalk treeWalk = TreeWalk.forPath(repository, path,
+						revWalk.parseCommit(commitId).getTree())) {
+			if (treeWalk == null) {
+				return null;
+			}
+			assertFalse(treeWalk.isSubtree(), path);
+			byte[] bytes = repository.open(treeWalk.getObjectId(0)).getBytes();
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static String commit(String refName, String mark, String fileChanges) {
+		return "commit " + refName + "\n"
+				+ (mark != null ? "mark " + mark + "\n" : "")
+				+ COMMITTER
+				+ data("Message")
+				+ fileChanges
+				+ "\n";
+	}
+
+	private static String data(String data) {
+		return "data " + data.getBytes(StandardCharsets.UTF_8).length + "\n" + data + "\n";
+	}
+}